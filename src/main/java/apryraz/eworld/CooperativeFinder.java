@@ -0,0 +1,215 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.sat4j.specs.*;
+
+/**
+ *  A team of agents that search the same Envelope World at once. Every scout
+ *  follows its own list of steps and publishes its readings in a shared
+ *  knowledge base; a coordinator EnvelopeFinder, the only one with a solver,
+ *  drains the readings, runs the inference and publishes the discarded
+ *  positions back into the shared knowledge base.
+ *
+ *  The team works in rounds: in every round all the scouts perform one step
+ *  in parallel, and every inferenceInterval rounds the coordinator runs the
+ *  inference with all the readings gathered since the last time. As the
+ *  positions discarded only depend on the set of readings, the result is the
+ *  same as if a single agent had performed all the steps, but with N scouts
+ *  the inference only runs once for every N readings.
+ **/
+public class CooperativeFinder {
+
+    /**
+     * Agent that runs the inference for the whole team
+     */
+    EnvelopeFinder coordinator;
+    /**
+     * Knowledge shared by the scouts and the coordinator
+     */
+    SharedKnowledgeBase knowledge;
+    /**
+     * The scouts of the team
+     */
+    ArrayList<FinderScout> scouts = new ArrayList<>();
+    /**
+     * The environment, shared by all the scouts
+     */
+    EnvelopeWorldEnv EnvAgent;
+    /**
+     * Threads that run the steps of the scouts
+     */
+    ExecutorService scoutExecutor;
+    /**
+     * Rounds between two inferences, and rounds performed since the last one
+     */
+    int inferenceInterval = 1, roundsSinceInference;
+    /**
+     * Readings drained from the shared knowledge base for the next inference
+     */
+    ArrayList<AMessage> readings = new ArrayList<>();
+
+    /**
+     * Class constructor
+     *
+     * @param WDim dimension of the world
+     * @param gammaEncoding encoding of the formula of the coordinator
+     * @param environment the environment searched by the team
+     */
+    public CooperativeFinder(int WDim, GammaEncoding gammaEncoding, EnvelopeWorldEnv environment) {
+        coordinator = new EnvelopeFinder(WDim, gammaEncoding);
+        coordinator.setEnvironment(environment);
+        knowledge = new SharedKnowledgeBase(WDim);
+        EnvAgent = environment;
+    }
+
+    /**
+     * Add a scout to the team. The environment answers the messages of all the
+     * scouts concurrently, so it must not record a trace.
+     *
+     * @param numSteps num of steps to read from the file
+     * @param stepsFile file name with the sequence of steps of the scout
+     * @return the new scout
+     */
+    public FinderScout addScout(int numSteps, String stepsFile) {
+        FinderScout scout = new FinderScout(scouts.size(), EnvelopeFinder.readListOfSteps(numSteps, stepsFile),
+                EnvAgent, knowledge);
+        scouts.add(scout);
+        return scout;
+    }
+
+    /**
+     * Set how many rounds are performed between two inferences
+     *
+     * @param rounds rounds between two inferences (at least 1)
+     */
+    public void setInferenceInterval(int rounds) {
+        inferenceInterval = Math.max(1, rounds);
+    }
+
+    /**
+     * @return true if some scout has steps left to perform
+     */
+    public boolean hasNextRound() {
+        for (FinderScout scout : scouts) {
+            if (scout.hasNextStep()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Perform a round: every scout with steps left performs its next step (in
+     * parallel), and then the coordinator runs the inference if it is its turn
+     * or if no scout has steps left.
+     *
+     * @throws IOException
+     * @throws ContradictionException
+     * @throws TimeoutException
+     */
+    public void runNextRound() throws IOException, ContradictionException, TimeoutException {
+        if (scoutExecutor == null) {
+            scoutExecutor = Executors.newFixedThreadPool(Math.max(1, scouts.size()), r -> {
+                Thread thread = new Thread(r, "finder-scout");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        ArrayList<Callable<Void>> steps = new ArrayList<>();
+        for (FinderScout scout : scouts) {
+            if (scout.hasNextStep()) {
+                steps.add(() -> {
+                    scout.runNextStep();
+                    return null;
+                });
+            }
+        }
+        try {
+            for (Future<Void> step : scoutExecutor.invokeAll(steps)) {
+                step.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the scouts", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Error in a step of a scout", ex.getCause());
+        }
+
+        roundsSinceInference++;
+        if (roundsSinceInference >= inferenceInterval || !hasNextRound()) {
+            runInference();
+        }
+    }
+
+    /**
+     * Perform rounds until no scout has steps left, and then stop the threads
+     * of the scouts
+     *
+     * @throws IOException
+     * @throws ContradictionException
+     * @throws TimeoutException
+     */
+    public void run() throws IOException, ContradictionException, TimeoutException {
+        while (hasNextRound()) {
+            runNextRound();
+        }
+        close();
+    }
+
+    /**
+     * Let the coordinator run the inference with the readings published since
+     * the last one, and publish the positions it discards
+     *
+     * @throws IOException
+     * @throws ContradictionException
+     * @throws TimeoutException
+     */
+    void runInference() throws IOException, ContradictionException, TimeoutException {
+        readings.clear();
+        knowledge.drainEvidence(readings);
+        coordinator.runEvidenceStep(readings);
+        for (Position pos : coordinator.lastConclusions) {
+            knowledge.markNoEnvelope(pos.x, pos.y);
+        }
+        roundsSinceInference = 0;
+    }
+
+    /**
+     * @return the knowledge shared by the team
+     */
+    public SharedKnowledgeBase getKnowledge() {
+        return knowledge;
+    }
+
+    /**
+     * @return the state of knowledge of the coordinator
+     */
+    public EFState getState() {
+        return coordinator.getState();
+    }
+
+    /**
+     * @return the snapshot of the state of the coordinator published at the
+     *         end of its last inference (it can be read from any thread)
+     */
+    public EFStateSnapshot getSnapshot() {
+        return coordinator.getSnapshot();
+    }
+
+    /**
+     * Stop the threads of the scouts
+     */
+    public void close() {
+        if (scoutExecutor != null) {
+            scoutExecutor.shutdown();
+            scoutExecutor = null;
+        }
+    }
+}
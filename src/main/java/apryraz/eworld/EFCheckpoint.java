@@ -0,0 +1,261 @@
+package apryraz.eworld;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ *  Append-only binary checkpoint file of the knowledge of an EnvelopeFinder agent.
+ *
+ *  The file starts with a header (magic number and world dimension), followed by
+ *  one record per step with: index of the next step, agent position, sensor
+ *  reading at that position (-1 if none) and the positions discarded in that
+ *  step. The whole knowledge is the union of all the records, so writing a
+ *  record only costs the new conclusions. Records are buffered, and the file is
+ *  only synced to disk every syncInterval records.
+ *
+ *  Every record is preceded by the length of its data and followed by its
+ *  CRC32, so a record left incomplete (or garbled) by a crash is detected: the
+ *  log ends at the last complete record. When the file is opened again to
+ *  append, it is first truncated there, so the new records don't follow the
+ *  damaged one.
+ **/
+public class EFCheckpoint {
+
+    /**
+     * Magic number at the beginning of the file ("EFCP")
+     */
+    static final int MAGIC = 0x45464350;
+    /**
+     * Size in bytes of the file header, and of the data of a record without
+     * its conclusions
+     */
+    static final int HEADER_SIZE = 8, RECORD_BASE_SIZE = 17;
+
+    /**
+     * Dimension of the world
+     */
+    int WorldDim;
+    /**
+     * Number of records between two syncs, and records written since the last one
+     */
+    int syncInterval, pendingRecords;
+    /**
+     * The file stream (needed to sync) and the buffered stream on top of it
+     */
+    FileOutputStream fileStream;
+    DataOutputStream out;
+    /**
+     * Buffer where the data of a record is built, and its checksum
+     */
+    ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    DataOutputStream record = new DataOutputStream(recordBytes);
+    CRC32 crc = new CRC32();
+
+    /**
+     * Open a checkpoint file to append records. If the file is new, the header is
+     * written; otherwise it must belong to a world with the same dimension, and
+     * it is truncated after its last complete record.
+     *
+     * @param fileName name of the checkpoint file
+     * @param WDim dimension of the world
+     * @param interval number of records between two syncs of the file to disk
+     * @throws IOException
+     */
+    public EFCheckpoint(String fileName, int WDim, int interval) throws IOException {
+        WorldDim = WDim;
+        syncInterval = Math.max(1, interval);
+
+        File file = new File(fileName);
+        boolean newFile = !file.exists() || file.length() == 0;
+        long validLength = HEADER_SIZE;
+        if (!newFile) {
+            try (DataInputStream in = readHeader(fileName, WorldDim)) {
+                for (Record r = readRecord(in, WorldDim); r != null; r = readRecord(in, WorldDim)) {
+                    validLength += r.size;
+                }
+            }
+        }
+        fileStream = new FileOutputStream(file, true);
+        if (!newFile && file.length() > validLength) {
+            fileStream.getChannel().truncate(validLength);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(fileStream));
+        if (newFile) {
+            out.writeInt(MAGIC);
+            out.writeInt(WorldDim);
+            sync();
+        }
+    }
+
+    /**
+     * Append the record of the last step performed by the agent
+     *
+     * @param agent the EnvelopeFinder agent
+     * @throws IOException
+     */
+    public void writeStep(EnvelopeFinder agent) throws IOException {
+        recordBytes.reset();
+        record.writeInt(agent.getNumStepsPerformed());
+        record.writeInt(agent.agentX);
+        record.writeInt(agent.agentY);
+        SensorReading reading = agent.sensorEvidence.get(new Position(agent.agentX, agent.agentY));
+        record.writeByte(reading == null ? -1 : reading.getMask());
+        record.writeInt(agent.lastConclusions.size());
+        for (Position pos : agent.lastConclusions) {
+            record.writeInt((pos.getX() - 1) * WorldDim + pos.getY() - 1);
+        }
+        crc.reset();
+        crc.update(recordBytes.toByteArray());
+        out.writeInt(recordBytes.size());
+        recordBytes.writeTo(out);
+        out.writeInt((int) crc.getValue());
+
+        pendingRecords++;
+        if (pendingRecords >= syncInterval) {
+            sync();
+        }
+    }
+
+    /**
+     * Write the buffered records and sync the file to disk
+     *
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        out.flush();
+        fileStream.getFD().sync();
+        pendingRecords = 0;
+    }
+
+    /**
+     * Sync and close the file
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        sync();
+        out.close();
+    }
+
+    /**
+     * Load into the agent all the knowledge stored in a checkpoint file
+     *
+     * @param fileName name of the checkpoint file
+     * @param agent the EnvelopeFinder agent, for a world with the same dimension
+     * @throws IOException
+     */
+    public static void restore(String fileName, EnvelopeFinder agent) throws IOException {
+        int WDim = agent.WorldDim;
+        try (DataInputStream in = readHeader(fileName, WDim)) {
+            for (Record r = readRecord(in, WDim); r != null; r = readRecord(in, WDim)) {
+                agent.idNextStep = r.idNextStep;
+                agent.agentX = r.x;
+                agent.agentY = r.y;
+                if (r.mask >= 0) {
+                    agent.sensorEvidence.put(new Position(r.x, r.y), SensorReading.of(r.mask));
+                }
+                for (int lineal : r.conclusions) {
+                    agent.markNoEnvelope(lineal / WDim + 1, lineal % WDim + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * A record read from a checkpoint file
+     */
+    static class Record {
+        int idNextStep, x, y, mask;
+        int[] conclusions;
+        /**
+         * Size in bytes of the record in the file
+         */
+        int size;
+    }
+
+    /**
+     * Read the next record of a checkpoint file. The whole record is read and
+     * checked before it is decoded, so a damaged one is never applied.
+     *
+     * @param in stream positioned at the beginning of a record
+     * @param WDim dimension of the world
+     * @return the record, or null if the log ends here: end of file, a record
+     *         cut short, or a record with an impossible length or a wrong
+     *         checksum
+     * @throws IOException
+     */
+    static Record readRecord(DataInputStream in, int WDim) throws IOException {
+        byte[] data;
+        int checksum;
+        try {
+            int length = in.readInt();
+            // No record has more conclusions than positions in the world
+            long maxLength = RECORD_BASE_SIZE + 4L * WDim * WDim;
+            if (length < RECORD_BASE_SIZE || length > maxLength || (length - RECORD_BASE_SIZE) % 4 != 0) {
+                return null;
+            }
+            data = new byte[length];
+            in.readFully(data);
+            checksum = in.readInt();
+        } catch (EOFException ex) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+
+        DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(data));
+        Record r = new Record();
+        r.idNextStep = recordIn.readInt();
+        r.x = recordIn.readInt();
+        r.y = recordIn.readInt();
+        r.mask = recordIn.readByte();
+        int numConclusions = recordIn.readInt();
+        if (numConclusions != (data.length - RECORD_BASE_SIZE) / 4) {
+            return null;
+        }
+        r.conclusions = new int[numConclusions];
+        for (int i = 0; i < numConclusions; i++) {
+            r.conclusions[i] = recordIn.readInt();
+            if (r.conclusions[i] < 0 || r.conclusions[i] >= WDim * WDim) {
+                return null;
+            }
+        }
+        r.size = 8 + data.length;
+        return r;
+    }
+
+    /**
+     * Open a checkpoint file and check its header
+     *
+     * @param fileName name of the checkpoint file
+     * @param WDim expected dimension of the world
+     * @return stream positioned at the first record
+     * @throws IOException if the file is not a checkpoint for a world of dimension WDim
+     */
+    static DataInputStream readHeader(String fileName, int WDim) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+        if (in.readInt() != MAGIC) {
+            in.close();
+            throw new IOException(fileName + " is not a checkpoint file");
+        }
+        int dim = in.readInt();
+        if (dim != WDim) {
+            in.close();
+            throw new IOException(fileName + " is a checkpoint for a world of dimension " + dim);
+        }
+        return in;
+    }
+}
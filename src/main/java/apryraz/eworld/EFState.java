@@ -1,9 +1,14 @@
 package apryraz.eworld;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
 /**
- * Represents the envelope world in a 2D matrix
+ * Represents the envelope world in a 2D matrix. It is also the in-memory
+ * KnowledgeStore: the discarded positions are the ones with "X".
  */
-public class EFState {
+public class EFState implements KnowledgeStore {
   /**
 
 
@@ -12,6 +17,24 @@ public class EFState {
   int wDim;
   String [][] matrix;
 
+  /**
+   Summed-area index of the unknown positions: unknownSums[i][j] is the number
+   of positions not discarded in rows [1,i] and columns [1,j]. It is allocated
+   on the first query, and only the rows from dirtyRow on are rebuilt when the
+   next query arrives (wDim+1 if it is up to date). It is not updated by set()
+   itself, as a change at (i,j) shifts every sum below and to the right of it:
+   a step discards many positions, and they are paid for once by the next
+   query. The matrix must only be changed with set() once the index exists.
+  **/
+  int [][] unknownSums;
+  int dirtyRow;
+
+  /**
+   Rows of the matrix shared with a snapshot (null if no snapshot has been
+   taken): they are copied before being changed
+  **/
+  boolean [] sharedRows;
+
   public EFState( int dim ) {
     wDim = dim;
     matrix = new String[wDim][wDim];
@@ -21,18 +44,145 @@ public class EFState {
   public void initializeState()
   {
       for (int i = 0; i < wDim; i++) {
+          if (sharedRows != null && sharedRows[i]) {
+            matrix[i] = new String[wDim];
+            sharedRows[i] = false;
+          }
           for (int j = 0; j < wDim; j++) {
               matrix[i][j] = "?";
           }
       }
+      dirtyRow = 1;
   }
 
   /* i is the row, j the column
      we assume i and j are given in the range [1,wDim] */
   public void set( int i, int j, String val ) {
+         if (matrix[i-1][j-1].equals(val)) {
+           return;
+         }
+         if (i < dirtyRow) {
+           dirtyRow = i;
+         }
+         if (sharedRows != null && sharedRows[i-1]) {
+           matrix[i-1] = matrix[i-1].clone();
+           sharedRows[i-1] = false;
+         }
          matrix[i-1][j-1] = val;
   }
 
+  @Override
+  public int getDimension() {
+      return wDim;
+  }
+
+  @Override
+  public boolean isDiscarded( int x, int y ) {
+      return matrix[x-1][y-1].equals("X");
+  }
+
+  @Override
+  public void markDiscarded( int x, int y ) {
+      set(x, y, "X");
+  }
+
+  @Override
+  public long countDiscarded() {
+      return (long) wDim * wDim - countUnknown(1, 1, wDim, wDim);
+  }
+
+  /**
+   Take an immutable snapshot of the matrix. Only the array of rows is copied:
+   the rows are shared until they are changed with set().
+
+   @param step number of steps performed by the agent
+   @return the snapshot
+  **/
+  public EFStateSnapshot snapshot( int step ) {
+      if (sharedRows == null) {
+        sharedRows = new boolean[wDim];
+      }
+      Arrays.fill(sharedRows, true);
+      return new EFStateSnapshot(wDim, matrix.clone(), step);
+  }
+
+  /**
+   Count the positions not discarded inside a rectangle, in O(1) once the index
+   is up to date. The rectangle is clipped to the world.
+
+   @param x1 first row
+   @param y1 first column
+   @param x2 last row
+   @param y2 last column
+   @return number of positions of the rectangle that are not "X"
+  **/
+  public int countUnknown( int x1, int y1, int x2, int y2 ) {
+      updateIndex();
+      x1 = Math.max(x1, 1);
+      y1 = Math.max(y1, 1);
+      x2 = Math.min(x2, wDim);
+      y2 = Math.min(y2, wDim);
+      if (x1 > x2 || y1 > y2) {
+        return 0;
+      }
+      return unknownSums[x2][y2] - unknownSums[x1-1][y2] - unknownSums[x2][y1-1] + unknownSums[x1-1][y1-1];
+  }
+
+  /**
+   Get the blocks with the largest number of positions not discarded. The world
+   is split into size x size blocks aligned at (1,1) (the last ones are clipped
+   to the world), and blocks without unknown positions are never returned.
+
+   @param size dimension of the blocks
+   @param k maximum number of blocks to return
+   @return first position (lowest row and column) of the best blocks, with the
+           largest count first (ties go to the lowest row, then column)
+  **/
+  public ArrayList<Position> topCandidateRegions( int size, int k ) {
+      // Min-heap with the best k blocks seen so far: {count, x, y}
+      PriorityQueue<int[]> best = new PriorityQueue<>(
+          (a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0])
+                  : (a[1] != b[1] ? Integer.compare(b[1], a[1]) : Integer.compare(b[2], a[2])));
+      for (int x = 1; x <= wDim; x += size) {
+          for (int y = 1; y <= wDim; y += size) {
+              int count = countUnknown(x, y, x + size - 1, y + size - 1);
+              if (count > 0 && k > 0) {
+                best.add(new int[] { count, x, y });
+                if (best.size() > k) {
+                  best.poll();
+                }
+              }
+          }
+      }
+      ArrayList<Position> regions = new ArrayList<>();
+      while (!best.isEmpty()) {
+          int[] block = best.poll();
+          regions.add(0, new Position(block[1], block[2]));
+      }
+      return regions;
+  }
+
+  /**
+   Bring the summed-area index up to date, rebuilding only the rows from
+   dirtyRow on
+  **/
+  void updateIndex() {
+      if (unknownSums == null) {
+        unknownSums = new int[wDim+1][wDim+1];
+        dirtyRow = 1;
+      }
+      for (int i = dirtyRow; i <= wDim; i++) {
+          int rowSum = 0;
+          for (int j = 1; j <= wDim; j++) {
+              if (!matrix[i-1][j-1].equals("X")) {
+                rowSum++;
+              }
+              unknownSums[i][j] = unknownSums[i-1][j] + rowSum;
+          }
+      }
+      dirtyRow = wDim + 1;
+  }
+
   public boolean equals(Object obj){
        EFState efstate2 = (EFState) obj;
        boolean status = true;
@@ -47,6 +197,11 @@ public class EFState {
        return status;
    }
 
+  @Override
+  public int hashCode() {
+      return Arrays.deepHashCode(matrix);
+  }
+
   public void printState()
   {
       System.out.println("FINDER => Printing Envelope world matrix");
@@ -0,0 +1,192 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *  Reader of the frames written by EFStateFrameWriter. Any frame can be read by
+ *  its index: the reader seeks (with the index file) to the closest keyframe
+ *  not after it and applies the deltas that follow. The last frame read is
+ *  kept, so reading the frames in order only decodes one delta per frame.
+ **/
+public class EFStateFrameReader {
+
+    /**
+     * Dimension of the world, and number of frames in the file
+     */
+    int WorldDim, numFrames;
+    /**
+     * Channels of the frames file and of the index file
+     */
+    FileChannel channel, indexChannel;
+    /**
+     * Buffer for the frame being decoded
+     */
+    ByteBuffer frame;
+    /**
+     * Packed state of the last frame decoded, and its index (-1 if none)
+     */
+    long[] words;
+    int decodedFrame = -1;
+
+    /**
+     * Open a frames file and its index
+     *
+     * @param fileName name of the frames file
+     * @throws IOException if the file is not a frames file
+     */
+    public EFStateFrameReader(String fileName) throws IOException {
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        indexChannel = FileChannel.open(Paths.get(fileName + EFStateFrameWriter.INDEX_SUFFIX),
+                StandardOpenOption.READ);
+        ByteBuffer header = ByteBuffer.allocate(EFStateFrameWriter.HEADER_SIZE);
+        readFully(channel, header, 0);
+        if (header.getInt() != EFStateFrameWriter.MAGIC) {
+            close();
+            throw new IOException(fileName + " is not a frames file");
+        }
+        WorldDim = header.getInt();
+        numFrames = (int) (indexChannel.size() / 8);
+        words = new long[EFStateFrameWriter.numWords(WorldDim)];
+        frame = ByteBuffer.allocate(EFStateFrameWriter.maxFrameSize(WorldDim));
+    }
+
+    /**
+     * @return the number of frames in the file
+     */
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /**
+     * Read a frame
+     *
+     * @param index index of the frame, in the range [0,getNumFrames()-1]
+     * @return the state of knowledge stored in the frame
+     * @throws IOException
+     */
+    public EFState readFrame(int index) throws IOException {
+        if (index < 0 || index >= numFrames) {
+            throw new IndexOutOfBoundsException("Frame " + index + " of " + numFrames);
+        }
+        // Go back to the closest keyframe not after the frame, or to the frame
+        // that follows the last decoded one (the first frame is always a keyframe)
+        int first = index;
+        while (first != decodedFrame + 1 && loadFrame(first) != EFStateFrameWriter.KEYFRAME) {
+            first--;
+        }
+        for (int f = first; f <= index; f++) {
+            loadFrame(f);
+            decodeFrame();
+        }
+        decodedFrame = index;
+        return unpack();
+    }
+
+    /**
+     * Load a frame into the frame buffer
+     *
+     * @param index index of the frame
+     * @return the type of the frame
+     * @throws IOException
+     */
+    byte loadFrame(int index) throws IOException {
+        ByteBuffer offset = ByteBuffer.allocate(8);
+        readFully(indexChannel, offset, 8L * index);
+        long position = offset.getLong();
+
+        frame.clear();
+        frame.limit(EFStateFrameWriter.FRAME_HEADER_SIZE);
+        readFully(channel, frame, position);
+        frame.get();
+        int length = frame.getInt();
+        frame.clear();
+        frame.limit(EFStateFrameWriter.FRAME_HEADER_SIZE + length);
+        readFully(channel, frame, position);
+        return frame.get(0);
+    }
+
+    /**
+     * Apply the frame in the frame buffer to the packed state
+     */
+    void decodeFrame() {
+        byte type = frame.get();
+        frame.getInt();
+        if (type == EFStateFrameWriter.KEYFRAME) {
+            for (int w = 0; w < words.length; w++) {
+                words[w] = frame.getLong();
+            }
+        }
+        else {
+            int changed = getVarInt();
+            int position = -1;
+            for (int c = 0; c < changed; c++) {
+                position += getVarInt() + 1;
+                words[position >>> 6] ^= 1L << position;
+            }
+        }
+    }
+
+    /**
+     * Get a non negative integer written with EFStateFrameWriter.putVarInt
+     *
+     * @return the integer
+     */
+    int getVarInt() {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = frame.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Build a state of knowledge from the packed state
+     *
+     * @return the state
+     */
+    EFState unpack() {
+        EFState state = new EFState(WorldDim);
+        for (int i = 0; i < WorldDim; i++) {
+            for (int j = 0; j < WorldDim; j++) {
+                int position = i * WorldDim + j;
+                if ((words[position >>> 6] & (1L << position)) != 0) {
+                    state.set(i + 1, j + 1, "X");
+                }
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Close both files
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        channel.close();
+        indexChannel.close();
+    }
+
+    /**
+     * Fill a buffer (up to its limit) with the data of a channel at a given
+     * position, and flip it
+     *
+     * @throws IOException if the end of the channel is reached before
+     */
+    static void readFully(FileChannel fileChannel, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            if (fileChannel.read(data, position + data.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        data.flip();
+    }
+}
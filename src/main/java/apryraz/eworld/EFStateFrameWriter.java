@@ -0,0 +1,252 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *  Stream of states of knowledge of the Envelope World, written as compact
+ *  binary frames, that can be read back with EFStateFrameReader.
+ *
+ *  The file starts with a header (magic number, world dimension and keyframe
+ *  interval), followed by one frame per state. Every frame has a type byte,
+ *  the length of its payload and the payload:
+ *  - a keyframe has the whole state packed one bit per position (1 for "X"),
+ *    in 64-bit words, row by row;
+ *  - a delta frame has the number of positions that changed since the previous
+ *    frame and the distance from each changed position to the previous one, all
+ *    of them as variable-length integers.
+ *  A keyframe is written every keyframeInterval frames, and also whenever the
+ *  delta would not be smaller than the keyframe. The offset of every frame is
+ *  appended to a sidecar index file (fileName + ".idx"), 8 bytes per frame, so
+ *  a reader can seek to any frame.
+ **/
+public class EFStateFrameWriter {
+
+    /**
+     * Magic number at the beginning of the file ("EFFR")
+     */
+    static final int MAGIC = 0x45464652;
+    /**
+     * Size in bytes of the file header and of the header of every frame
+     */
+    static final int HEADER_SIZE = 12, FRAME_HEADER_SIZE = 5;
+    /**
+     * Types of frame
+     */
+    static final byte KEYFRAME = 0, DELTA = 1;
+    /**
+     * Suffix of the name of the index file
+     */
+    static final String INDEX_SUFFIX = ".idx";
+
+    /**
+     * Dimension of the world, frames between two keyframes, frames written
+     * since the last keyframe and frames written
+     */
+    int WorldDim, keyframeInterval, framesSinceKeyframe, numFrames;
+    /**
+     * Offset in the file of the next frame
+     */
+    long nextOffset;
+    /**
+     * Packed state of the previous frame, and of the frame being written
+     */
+    long[] previous, current;
+    /**
+     * Channels of the frames file and of the index file, and buffers with the
+     * data not yet written to them
+     */
+    FileChannel channel, indexChannel;
+    ByteBuffer buffer, indexBuffer;
+
+    /**
+     * Create a new frames file and its index, replacing any previous files with
+     * the same names
+     *
+     * @param fileName name of the frames file
+     * @param WDim dimension of the world
+     * @param interval maximum number of frames between two keyframes
+     * @throws IOException
+     */
+    public EFStateFrameWriter(String fileName, int WDim, int interval) throws IOException {
+        WorldDim = WDim;
+        keyframeInterval = Math.max(1, interval);
+        previous = new long[numWords(WorldDim)];
+        current = new long[numWords(WorldDim)];
+
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        indexChannel = FileChannel.open(Paths.get(fileName + INDEX_SUFFIX), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = ByteBuffer.allocateDirect(Math.max(1 << 16, 2 * maxFrameSize(WorldDim)));
+        indexBuffer = ByteBuffer.allocateDirect(8 * 4096);
+
+        buffer.putInt(MAGIC);
+        buffer.putInt(WorldDim);
+        buffer.putInt(keyframeInterval);
+        nextOffset = HEADER_SIZE;
+    }
+
+    /**
+     * Append a frame with a state of knowledge
+     *
+     * @param state the state, of a world with the same dimension
+     * @throws IOException
+     */
+    public void writeFrame(EFState state) throws IOException {
+        pack(state, current);
+        // A delta is abandoned as soon as it reaches the size of a keyframe,
+        // after writing at most one variable-length integer (5 bytes) more
+        if (buffer.remaining() < maxFrameSize(WorldDim) + 5 || indexBuffer.remaining() < 8) {
+            flush();
+        }
+
+        int start = buffer.position();
+        boolean delta = numFrames > 0 && framesSinceKeyframe + 1 < keyframeInterval && putDelta();
+        if (!delta) {
+            buffer.position(start);
+            putKeyframe();
+        }
+        indexBuffer.putLong(nextOffset);
+        nextOffset += buffer.position() - start;
+        framesSinceKeyframe = delta ? framesSinceKeyframe + 1 : 0;
+        numFrames++;
+
+        long[] swap = previous;
+        previous = current;
+        current = swap;
+    }
+
+    /**
+     * Put in the buffer a keyframe with the current state
+     */
+    void putKeyframe() {
+        buffer.put(KEYFRAME);
+        buffer.putInt(current.length * 8);
+        for (long word : current) {
+            buffer.putLong(word);
+        }
+    }
+
+    /**
+     * Put in the buffer a delta frame between the previous and the current state
+     *
+     * @return false if the delta would not be smaller than a keyframe (the
+     *         buffer is left with an incomplete frame that must be discarded)
+     */
+    boolean putDelta() {
+        int changed = 0;
+        for (int w = 0; w < current.length; w++) {
+            changed += Long.bitCount(current[w] ^ previous[w]);
+        }
+        int start = buffer.position();
+        int limit = start + FRAME_HEADER_SIZE + current.length * 8;
+        buffer.put(DELTA);
+        buffer.putInt(0);
+        putVarInt(changed);
+
+        int last = -1;
+        for (int w = 0; w < current.length; w++) {
+            long diff = current[w] ^ previous[w];
+            while (diff != 0) {
+                int position = w * 64 + Long.numberOfTrailingZeros(diff);
+                putVarInt(position - last - 1);
+                last = position;
+                diff &= diff - 1;
+                if (buffer.position() >= limit) {
+                    return false;
+                }
+            }
+        }
+        buffer.putInt(start + 1, buffer.position() - start - FRAME_HEADER_SIZE);
+        return true;
+    }
+
+    /**
+     * Put in the buffer a non negative integer, 7 bits per byte (the highest
+     * bit of a byte tells whether more bytes follow)
+     *
+     * @param value the integer
+     */
+    void putVarInt(int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Write the buffered frames to the file, and then their offsets to the index
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        write(channel, buffer);
+        write(indexChannel, indexBuffer);
+    }
+
+    /**
+     * Write the buffered data and close both files
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        flush();
+        channel.close();
+        indexChannel.close();
+    }
+
+    /**
+     * Write all the data of a buffer to a channel, and clear the buffer
+     */
+    static void write(FileChannel fileChannel, ByteBuffer data) throws IOException {
+        data.flip();
+        while (data.hasRemaining()) {
+            fileChannel.write(data);
+        }
+        data.clear();
+    }
+
+    /**
+     * Pack a state one bit per position (1 for "X"), row by row
+     *
+     * @param state the state
+     * @param words array where to pack it, with numWords(state.wDim) words
+     */
+    static void pack(EFState state, long[] words) {
+        java.util.Arrays.fill(words, 0);
+        int dim = state.wDim;
+        for (int i = 0; i < dim; i++) {
+            for (int j = 0; j < dim; j++) {
+                if (state.matrix[i][j].equals("X")) {
+                    int position = i * dim + j;
+                    words[position >>> 6] |= 1L << position;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of 64-bit words of a packed state
+     *
+     * @param WDim dimension of the world
+     * @return number of words
+     */
+    static int numWords(int WDim) {
+        return (WDim * WDim + 63) / 64;
+    }
+
+    /**
+     * Get the size in bytes of the largest frame (a keyframe)
+     *
+     * @param WDim dimension of the world
+     * @return size of a keyframe, including its header
+     */
+    static int maxFrameSize(int WDim) {
+        return FRAME_HEADER_SIZE + numWords(WDim) * 8;
+    }
+}
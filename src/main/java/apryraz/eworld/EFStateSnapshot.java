@@ -0,0 +1,53 @@
+package apryraz.eworld;
+
+/**
+ * Immutable view of the state of knowledge of an agent at the end of a step.
+ * It shares the rows of the matrix with the EFState it was taken from: the
+ * EFState copies a row before changing it for the first time after the
+ * snapshot, so taking a snapshot only copies the array of rows and the rows
+ * seen by the snapshot never change. It can be read from any thread.
+ */
+public final class EFStateSnapshot {
+
+  /**
+   Dimension of the world, rows of the matrix, and number of steps performed
+   by the agent when the snapshot was taken
+  **/
+  final int wDim;
+  final String [][] rows;
+  final int step;
+
+  EFStateSnapshot( int dim, String [][] sharedRows, int steps ) {
+    wDim = dim;
+    rows = sharedRows;
+    step = steps;
+  }
+
+  /* i is the row, j the column
+     we assume i and j are given in the range [1,wDim] */
+  public String get( int i, int j ) {
+    return rows[i-1][j-1];
+  }
+
+  public int getDimension() {
+    return wDim;
+  }
+
+  /**
+   @return the number of steps performed by the agent when the snapshot was taken
+  **/
+  public int getStep() {
+    return step;
+  }
+
+  /**
+   @return a new EFState with the same matrix, that can be changed freely
+  **/
+  public EFState toState() {
+    EFState state = new EFState(wDim);
+    for (int i = 0; i < wDim; i++) {
+      System.arraycopy(rows[i], 0, state.matrix[i], 0, wDim);
+    }
+    return state;
+  }
+}
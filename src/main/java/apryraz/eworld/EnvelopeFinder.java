@@ -11,8 +11,17 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import static java.lang.System.exit;
 
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.sat4j.core.VecInt;
@@ -67,6 +76,10 @@ public class EnvelopeFinder  {
 *  Dimension of the world and total size of the world (Dim^2)
 **/
     int WorldDim, WorldLinealDim;
+/**
+*  Encoding used to build the formula
+**/
+    GammaEncoding encoding;
 
 /**
 *    This set of variables CAN be used to mark the beginning of different sets
@@ -84,6 +97,153 @@ public class EnvelopeFinder  {
      * Set used to identify the previous conclusions that were already added in previous steps
      */
     HashSet<VecInt> previousConsequences = new HashSet<>();
+
+    /**
+     * Sensor readings obtained so far, indexed by the position where they were sensed
+     */
+    HashMap<Position, SensorReading> sensorEvidence = new HashMap<>();
+
+    /**
+     * Positions whose sensor clauses are already in the formula
+     * (with the lazy encoding they are only generated for the sensed positions)
+     */
+    HashSet<Position> cellsWithSensorClauses = new HashSet<>();
+
+    /**
+     * Selector variables of the hypothetical detection clauses already added
+     * to the solver, indexed by position and reading (see whatIf)
+     */
+    HashMap<Long, Integer> hypothesisSelectors = new HashMap<>();
+
+    /**
+     * Compaction settings: rebuild the formula every compactionInterval steps, or
+     * when the solver holds more than compactionClauseThreshold constraints
+     * (0 disables each trigger)
+     */
+    int compactionInterval, compactionClauseThreshold;
+
+    /**
+     * Number of steps performed since the formula was last (re)built
+     */
+    int stepsSinceCompaction;
+
+    /**
+     * Positions discarded by the last call to the inference function
+     */
+    ArrayList<Position> lastConclusions = new ArrayList<>();
+
+    /**
+     * Last sensor reading obtained (null before the first one)
+     */
+    SensorReading lastReading;
+
+    /**
+     * Checkpoint file where the new knowledge is appended after every step
+     * (null if checkpointing is not enabled)
+     */
+    EFCheckpoint checkpoint;
+
+    /**
+     * File where the state of knowledge is exported as a frame after every step
+     * (null if exporting is not enabled)
+     */
+    EFStateFrameWriter frameExport;
+
+    /**
+     * Whether the next position is chosen by the planner instead of being read
+     * from listOfSteps, and number of envelopes the planner expects to find
+     */
+    boolean plannerMode;
+    int plannerEnvelopeEstimate = 1;
+
+    /**
+     * Known number of envelopes of the world (0 if unknown), and whether it is
+     * the exact number or only an upper bound
+     */
+    int envelopeCount;
+    boolean exactEnvelopeCount;
+
+    /**
+     * Cache of inference results shared with other agents, and node of the
+     * steps performed so far (null if the cache is not used)
+     */
+    InferenceCache inferenceCache;
+    InferenceCache.Cursor cacheCursor;
+
+    /**
+     * Pipelined mode: the move and sensor messages of the next step are sent by
+     * envExecutor while the inference of the current step is performed, and
+     * pendingRoundTrip holds their answers
+     */
+    boolean pipelined;
+    ExecutorService envExecutor;
+    Future<AMessage[]> pendingRoundTrip;
+
+    /**
+     * Anytime inference: maximum time (in nanoseconds) and number of SAT calls
+     * that the inference of a step can use (0 means no limit for each one)
+     */
+    long inferenceTimeBudget;
+    int inferenceSatCallBudget;
+
+    /**
+     * Total number of calls to the SAT solver, and how many of them were made
+     * by what-if queries
+     */
+    long numSatCalls, numHypotheticalSatCalls;
+
+    /**
+     * Unit propagation over the same clauses as the solver, the first tier of
+     * the inference: a position whose future variable it has already set to
+     * false is discarded without calling the solver
+     */
+    UnitPropagator propagator;
+
+    /**
+     * Positions discarded by the last inference by unit propagation and by
+     * the SAT solver
+     */
+    int lastPropagationConclusions, lastSatConclusions;
+
+    /**
+     * Recent models of the formula: a position that is true in one of them
+     * can't be discarded, and is not checked with the solver (null if no
+     * models are kept), and maximum number of models kept
+     */
+    WitnessCache witnesses;
+    int maxWitnessModels = WitnessCache.DEFAULT_MAX_MODELS;
+
+    /**
+     * Positions left undiscarded by the last inference thanks to a witness model
+     */
+    int lastWitnessHits;
+
+    /**
+     * Snapshot of the state published at the end of the last step, for the
+     * threads that monitor the agent
+     */
+    volatile EFStateSnapshot snapshot;
+
+    /**
+     * Phases of a step, and time (in nanoseconds) spent in each one in the last step
+     */
+    static final int PHASE_MOVE = 0, PHASE_SENSE = 1, PHASE_INFERENCE = 2, PHASE_OTHER = 3;
+    static final String[] PHASE_NAMES = { "move", "sense", "inference", "other" };
+    long[] lastStepNanos = new long[4];
+
+    /**
+     * Anytime inference work queue: lineal indexes (starting at 0) of the
+     * positions still to check, and whether each position is in the queue
+     */
+    ArrayDeque<Integer> inferenceQueue = new ArrayDeque<>();
+    boolean[] queuedPositions;
+
+    /**
+     * Version of the evidence (incremented with every sensor reading), and
+     * version at which each position was last found to be possible
+     */
+    int evidenceVersion;
+    int[] checkedVersion;
     /**
      The class constructor must create the initial Boolean formula with the
      rules of the Envelope World, initialize the variables for indicating
@@ -93,10 +253,24 @@ public class EnvelopeFinder  {
 
    **/
     public EnvelopeFinder(int WDim)
+    {
+        this(WDim, GammaEncoding.FULL);
+    }
+
+    /**
+     Same as the previous constructor, but choosing the encoding used to
+     build the formula.
+
+     @param WDim the dimension of the Envelope World
+     @param gammaEncoding the encoding of the formula
+
+   **/
+    public EnvelopeFinder(int WDim, GammaEncoding gammaEncoding)
     {
 
         WorldDim = WDim;
         WorldLinealDim = WorldDim * WorldDim;
+        encoding = gammaEncoding;
 
         try {
             solver = buildGamma();
@@ -111,6 +285,7 @@ public class EnvelopeFinder  {
 
 
         efstate = new EFState(WorldDim);  // Initialize state (matrix) of knowledge with '?'
+        publishSnapshot();
         efstate.printState();
     }
 
@@ -127,6 +302,19 @@ public class EnvelopeFinder  {
          EnvAgent =  environment;
     }
 
+    /**
+     * Enable the periodic compaction of the formula. After a step, the solver is
+     * rebuilt from scratch when interval steps have been performed since the last
+     * rebuild, or when it holds more than clauseThreshold constraints.
+     *
+     * @param interval number of steps between compactions (0 to disable)
+     * @param clauseThreshold maximum number of constraints before compacting (0 to disable)
+     */
+    public void setCompaction( int interval, int clauseThreshold ) {
+        compactionInterval = interval;
+        compactionClauseThreshold = clauseThreshold;
+    }
+
 
     /**
       Load a sequence of steps to be performed by the agent. This sequence will
@@ -139,6 +327,22 @@ public class EnvelopeFinder  {
 
     **/
     public void loadListOfSteps( int numSteps, String stepsFile )
+    {
+        listOfSteps = readListOfSteps(numSteps, stepsFile);
+        numMovements = listOfSteps.size(); // Initialization of numMovements
+        idNextStep = 0;
+    }
+
+    /**
+      Read a sequence of steps from a file.
+
+      @param numSteps number of steps to read from the file
+      @param stepsFile the name of the text file with the line that contains
+                       the sequence of steps: x1,y1 x2,y2 ...  xn,yn
+      @return the list of steps, as objects of the class Position
+
+    **/
+    public static ArrayList<Position> readListOfSteps( int numSteps, String stepsFile )
     {
         String[] stepsList;
         String steps = ""; // Prepare a list of movements to try with the FINDER Agent
@@ -154,24 +358,593 @@ public class EnvelopeFinder  {
             Logger.getLogger(EnvelopeFinder.class.getName()).log(Level.SEVERE, null, ex);
             exit(2);
         }
-        stepsList = steps.split(" ");
-        listOfSteps = new ArrayList<Position>(numSteps);
-        for (int i = 0 ; i < numSteps ; i++ ) {
-            String[] coords = stepsList[i].split(",");
-            listOfSteps.add(new Position(Integer.parseInt(coords[0]), Integer.parseInt(coords[1])));
+        stepsList = steps.split(" ");
+        ArrayList<Position> listOfSteps = new ArrayList<Position>(numSteps);
+        for (int i = 0 ; i < numSteps ; i++ ) {
+            String[] coords = stepsList[i].split(",");
+            listOfSteps.add(new Position(Integer.parseInt(coords[0]), Integer.parseInt(coords[1])));
+        }
+        return listOfSteps;
+    }
+
+    /**
+      Overlap the interaction with the environment and the inference: the move
+      and sensor messages of the step k+1 are sent while the inference of the
+      step k is in progress, and their answers are processed, in order, at the
+      beginning of the step k+1. Only used when following a list of steps, as
+      the planner needs the result of the inference to choose the next position.
+
+      @param enabled whether to use the pipelined mode
+
+    **/
+    public void setPipelined( boolean enabled )
+    {
+        pipelined = enabled;
+        if (pipelined && envExecutor == null) {
+            envExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "finder-environment");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+      Bound the work of the inference of every step. The positions are checked
+      in priority order (first the ones around the last reading, then the ones
+      that have waited longer since their last check) until the budget is used
+      up, and the state is left with the conclusions proved so far. The positions
+      not checked are kept in the queue for the next steps, so the state still
+      converges to the one obtained without budget.
+
+      With a time budget, the timeout of every SAT call is set to the time left
+      in the budget of the step, so a single hard call can't overrun it; a call
+      that times out leaves its position unknown, and it is checked again in the
+      next steps. With only a SAT call budget, the solver uses a conflict based
+      timeout instead of the time based one, that would start a timer thread on
+      every call.
+
+      @param millis maximum time in milliseconds for the inference of a step (0 for no limit)
+      @param satCalls maximum number of SAT calls in the inference of a step (0 for no limit)
+
+    **/
+    public void setInferenceBudget( long millis, int satCalls )
+    {
+        inferenceTimeBudget = millis * 1000000L;
+        inferenceSatCallBudget = satCalls;
+        if (queuedPositions == null) {
+            queuedPositions = new boolean[WorldLinealDim];
+            checkedVersion = new int[WorldLinealDim];
+        }
+        configureTimeout();
+    }
+
+    /**
+     * Check whether the inference has a budget per step
+     *
+     * @return true if the anytime inference is enabled
+     */
+    public boolean isAnytime()
+    {
+        return inferenceTimeBudget > 0 || inferenceSatCallBudget > 0;
+    }
+
+    /**
+     * Check whether every position has been checked against all the evidence
+     *
+     * @return true if there is no pending work for the inference
+     */
+    public boolean isInferenceComplete()
+    {
+        for (int lineal : inferenceQueue) {
+            int x = lineal / WorldDim + 1;
+            int y = lineal % WorldDim + 1;
+            if (!knownNoEnvelope(new Position(x, y)) && checkedVersion[lineal] != evidenceVersion) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Set the timeout of the solver according to the inference mode
+     */
+    void configureTimeout()
+    {
+        if (isAnytime()) {
+            solver.setTimeoutOnConflicts(Integer.MAX_VALUE);
+        } else {
+            solver.setTimeout(3600);
+        }
+    }
+
+    /**
+     * Use a cache of inference results, that can be shared with other agents.
+     * When the steps performed so far (positions sensed and readings) are in
+     * the cache, the inference of the step is skipped and the positions stored
+     * in the cache are discarded instead; from the first step that is not in
+     * the cache, the inference is performed and its results are added to it.
+     * It must be set before the first step, and after the number of envelopes,
+     * if known. It is not used while the inference has a budget, as the results
+     * could be incomplete; and as the cache would then miss that step, the agent
+     * stops using it for good after the first step performed with a budget.
+     *
+     * @param cache the cache
+     */
+    public void setInferenceCache( InferenceCache cache )
+    {
+        inferenceCache = cache;
+        cacheCursor = cache.start(WorldDim, envelopeCount, exactEnvelopeCount);
+    }
+
+    /**
+     * Perform the inference of a step through the cache: reuse the result
+     * stored for the steps performed so far if there is one, and otherwise
+     * perform the inference questions and store the result
+     *
+     * @param sensorAns answer to the detectsat message of the step
+     * @throws IOException
+     * @throws ContradictionException
+     * @throws TimeoutException
+     */
+    void performCachedInference( AMessage sensorAns ) throws IOException, ContradictionException, TimeoutException
+    {
+        BitSet discarded = inferenceCache.lookup(cacheCursor, Integer.parseInt(sensorAns.getComp(1)),
+                Integer.parseInt(sensorAns.getComp(2)), SensorReading.parse(sensorAns.getComp(0)));
+        if (discarded == null) {
+            performInferenceQuestions();
+            discarded = new BitSet(WorldLinealDim);
+            for (int x = 1; x <= WorldDim; x++) {
+                for (int y = 1; y <= WorldDim; y++) {
+                    if (knownNoEnvelope(new Position(x, y))) {
+                        discarded.set(coordToLineal(x, y, 0));
+                    }
+                }
+            }
+            inferenceCache.insert(cacheCursor, discarded);
+            return;
+        }
+
+        System.out.println("FINDER => inference found in the cache");
+        lastConclusions.clear();
+        lastPropagationConclusions = 0;
+        lastSatConclusions = 0;
+        lastWitnessHits = 0;
+        for (int lineal = discarded.nextSetBit(0); lineal >= 0; lineal = discarded.nextSetBit(lineal + 1)) {
+            int x = lineal / WorldDim + 1;
+            int y = lineal % WorldDim + 1;
+            if (!knownNoEnvelope(new Position(x, y))) {
+                markNoEnvelope(x, y);
+                VecInt concPast = new VecInt();
+                concPast.insertFirst(-coordToLineal(x, y, EnvelopePastOffset));
+                futureToPast.add(concPast);
+                lastConclusions.add(new Position(x, y));
+            }
+        }
+    }
+
+    /**
+     * Set how many recent models of the formula are kept as witnesses of the
+     * positions that can't be discarded. The models are dropped.
+     *
+     * @param maxModels maximum number of models (0 to keep none)
+     */
+    public void setMaxWitnessModels( int maxModels )
+    {
+        maxWitnessModels = Math.max(0, maxModels);
+        witnesses = maxWitnessModels > 0 ? new WitnessCache(maxWitnessModels) : null;
+    }
+
+    /**
+     * Tell the agent how many envelopes there are in the world. The count is
+     * added to the formula as a cardinality constraint over the envelope
+     * variables, and every sensor that detects something adds the clause that
+     * some position in its scope has an envelope. With both, a reading can
+     * discard positions far away from it (for instance, once all the envelopes
+     * have been located). The planner also uses the count as its estimate.
+     *
+     * @param count number of envelopes (at least 1)
+     * @param exact true if there are exactly count envelopes, false if there
+     *              are at most count envelopes
+     * @throws ContradictionException
+     */
+    public void setEnvelopeCount( int count, boolean exact ) throws ContradictionException
+    {
+        envelopeCount = count;
+        exactEnvelopeCount = exact;
+        plannerEnvelopeEstimate = count;
+        addEnvelopeCountConstraint();
+        for (Map.Entry<Position, SensorReading> reading : sensorEvidence.entrySet()) {
+            addDetectionClauses(reading.getKey().getX(), reading.getKey().getY(), reading.getValue());
+        }
+    }
+
+    /**
+     * Add to the solver the cardinality constraint over the future envelope
+     * variables of the positions not yet discarded, if the count is known
+     *
+     * @throws ContradictionException
+     */
+    void addEnvelopeCountConstraint() throws ContradictionException
+    {
+        if (envelopeCount <= 0) {
+            return;
+        }
+        if (witnesses != null) {
+            // The models are only checked against new readings
+            witnesses.clear();
+        }
+        VecInt envelopeVars = new VecInt();
+        for (int x = 1; x <= WorldDim; x++) {
+            for (int y = 1; y <= WorldDim; y++) {
+                if (!knownNoEnvelope(new Position(x, y))) {
+                    envelopeVars.push(coordToLineal(x, y, EnvelopeFutureOffset));
+                }
+            }
+        }
+        if (exactEnvelopeCount) {
+            solver.addExactly(envelopeVars, envelopeCount);
+        } else {
+            solver.addAtMost(envelopeVars, envelopeCount);
+        }
+    }
+
+    /**
+     * Add, for each sensor that detects an envelope in a reading obtained at
+     * (x,y), the clause that some position of its scope not yet discarded has
+     * an envelope
+     *
+     * @param x x coordinate of the reading
+     * @param y y coordinate of the reading
+     * @param reading output of the sensors at (x,y)
+     * @throws ContradictionException
+     */
+    void addDetectionClauses( int x, int y, SensorReading reading ) throws ContradictionException
+    {
+        for (int sensor = 1; sensor <= SensorReading.NUM_SENSORS; sensor++) {
+            if (reading.detects(sensor)) {
+                ArrayList<Integer> clause = new ArrayList<>();
+                for (int k = 0; k < SensorReading.scopeSize(sensor); k++) {
+                    int px = x + SensorReading.scopeDx(sensor, k), py = y + SensorReading.scopeDy(sensor, k);
+                    if (withinLimits(px, py) && !knownNoEnvelope(px, py)) {
+                        clause.add(coordToLineal(px, py, EnvelopeFutureOffset));
+                    }
+                }
+                insertClause(clause);
+            }
+        }
+    }
+
+    /**
+     * Answer the question "what would the agent know if it sensed reading at
+     * (x,y)?" without changing its knowledge. The positions the reading forbids
+     * are passed to the solver as assumptions. If the number of envelopes is
+     * known, the detection clauses of the reading are also needed: they are
+     * added once, guarded by a selector variable that is only assumed in the
+     * queries about that same hypothesis, so they have no effect otherwise.
+     *
+     * @param x x coordinate of the hypothetical reading
+     * @param y y coordinate of the hypothetical reading
+     * @param reading the hypothetical output of the sensors
+     * @return a new state with the positions that would be discarded, or null
+     *         if the reading is not consistent with the current knowledge
+     * @throws ContradictionException
+     * @throws TimeoutException
+     */
+    public EFState whatIf( int x, int y, SensorReading reading ) throws ContradictionException, TimeoutException
+    {
+        EFState hypothetical = new EFState(WorldDim);
+        for (int i = 0; i < WorldDim; i++) {
+            System.arraycopy(efstate.matrix[i], 0, hypothetical.matrix[i], 0, WorldDim);
+        }
+
+        VecInt assumptions = new VecInt();
+        for (int k = 0; k < reading.forbiddenCount(); k++) {
+            int px = x + reading.forbiddenDx(k), py = y + reading.forbiddenDy(k);
+            if (withinLimits(px, py) && !knownNoEnvelope(px, py)) {
+                assumptions.push(-coordToLineal(px, py, EnvelopeFutureOffset));
+                hypothetical.set(px, py, "X");
+            }
+        }
+        if (envelopeCount > 0 && reading.getMask() != 0) {
+            assumptions.push(hypothesisSelector(x, y, reading));
+        }
+        numSatCalls++;
+        numHypotheticalSatCalls++;
+        if (!solver.isSatisfiable(assumptions)) {
+            return null;
+        }
+
+        for (int i = 1; i <= WorldDim; i++) {
+            for (int j = 1; j <= WorldDim; j++) {
+                if (!hypothetical.matrix[i-1][j-1].equals("X")) {
+                    assumptions.push(coordToLineal(i, j, EnvelopeFutureOffset));
+                    numSatCalls++;
+                    numHypotheticalSatCalls++;
+                    if (!solver.isSatisfiable(assumptions)) {
+                        hypothetical.set(i, j, "X");
+                    }
+                    assumptions.pop();
+                }
+            }
+        }
+        return hypothetical;
+    }
+
+    /**
+     * Get the selector variable of the detection clauses of a hypothetical
+     * reading, adding them to the solver the first time
+     *
+     * @param x x coordinate of the hypothetical reading
+     * @param y y coordinate of the hypothetical reading
+     * @param reading the hypothetical output of the sensors
+     * @return the selector variable
+     * @throws ContradictionException
+     */
+    int hypothesisSelector( int x, int y, SensorReading reading ) throws ContradictionException
+    {
+        long key = ((long) coordToLineal(x, y, 0) << SensorReading.NUM_SENSORS) | reading.getMask();
+        Integer selector = hypothesisSelectors.get(key);
+        if (selector == null) {
+            selector = solver.nextFreeVarId(true);
+            for (int sensor = 1; sensor <= SensorReading.NUM_SENSORS; sensor++) {
+                if (reading.detects(sensor)) {
+                    VecInt clause = new VecInt();
+                    clause.push(-selector);
+                    for (int k = 0; k < SensorReading.scopeSize(sensor); k++) {
+                        int px = x + SensorReading.scopeDx(sensor, k), py = y + SensorReading.scopeDy(sensor, k);
+                        if (withinLimits(px, py) && !knownNoEnvelope(px, py)) {
+                            clause.push(coordToLineal(px, py, EnvelopeFutureOffset));
+                        }
+                    }
+                    addClause(clause);
+                }
+            }
+            hypothesisSelectors.put(key, selector);
+        }
+        return selector;
+    }
+
+    /**
+      Let the agent choose every next position, instead of following a list of
+      steps: it moves to the position whose reading is expected to discard the
+      largest number of unknown positions, until no reading can give any new
+      information.
+
+      @param maxSteps maximum number of steps to perform
+
+    **/
+    public void setPlannerMode( int maxSteps )
+    {
+        plannerMode = true;
+        numMovements = maxSteps;
+        idNextStep = 0;
+    }
+
+    /**
+     * Choose the next position to visit. For every position not visited yet, the
+     * expected number of positions its reading would discard is computed as the
+     * sum, for each sensor, of the unknown positions in its scope times the
+     * probability that the sensor detects nothing. When that probability is 0
+     * (the estimate of envelopes is not below the number of unknown positions)
+     * every expected gain is 0, so ties are broken first by the number of unknown
+     * positions in the scopes, and then by the distance to the current position
+     * of the agent. Positions with no unknown position in their scopes are
+     * never chosen.
+     *
+     * @return the best position, or null if no reading can discard any position
+     */
+    public Position planNextStep()
+    {
+        int numUnknown = efstate.countUnknown(1, 1, WorldDim, WorldDim);
+        // Probability that an unknown position contains an envelope
+        double q = Math.min(1.0, (double) plannerEnvelopeEstimate / Math.max(1, numUnknown));
+
+        Position best = null;
+        double bestGain = 0;
+        int bestCovered = 0;
+        int bestDistance = 0;
+        for (int x = 1; x <= WorldDim; x++) {
+            for (int y = 1; y <= WorldDim; y++) {
+                Position pos = new Position(x, y);
+                if (sensorEvidence.containsKey(pos)) {
+                    continue;
+                }
+                double gain = 0;
+                int covered = 0;
+                for (int sensor = 1; sensor <= SensorReading.NUM_SENSORS; sensor++) {
+                    int unknown = countUnknown(sensor, x, y);
+                    gain += expectedGain(unknown, q);
+                    covered += unknown;
+                }
+                if (covered == 0) {
+                    continue;
+                }
+                int distance = Math.abs(x - agentX) + Math.abs(y - agentY);
+                if (best == null || gain > bestGain || (gain == bestGain
+                        && (covered > bestCovered || (covered == bestCovered && distance < bestDistance)))) {
+                    best = pos;
+                    bestGain = gain;
+                    bestCovered = covered;
+                    bestDistance = distance;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Check whether the agent already knows everything it can know: no reading at
+     * any position not visited yet can discard a new position
+     *
+     * @return true if the possible envelope locations are fully determined
+     */
+    public boolean isFullyDetermined()
+    {
+        for (int x = 1; x <= WorldDim; x++) {
+            for (int y = 1; y <= WorldDim; y++) {
+                Position pos = new Position(x, y);
+                if (!sensorEvidence.containsKey(pos) && hasUnknownNeighbour(pos)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Expected number of positions discarded by a sensor
+     *
+     * @param unknown number of unknown positions in the scope of the sensor
+     * @param q probability that an unknown position contains an envelope
+     * @return unknown times the probability that the sensor detects nothing
+     */
+    double expectedGain( int unknown, double q )
+    {
+        return unknown * Math.pow(1 - q, unknown);
+    }
+
+    /**
+     * Count the positions in the scope of a sensor that are inside the world
+     * and not yet discarded
+     *
+     * @param sensor number of the sensor, in the range [1,3]
+     * @param x x coordinate of the sensor
+     * @param y y coordinate of the sensor
+     * @return number of unknown positions
+     */
+    int countUnknown( int sensor, int x, int y )
+    {
+        int unknown = 0;
+        for (int k = 0; k < SensorReading.scopeSize(sensor); k++) {
+            int px = x + SensorReading.scopeDx(sensor, k), py = y + SensorReading.scopeDy(sensor, k);
+            if (withinLimits(px, py) && !knownNoEnvelope(px, py)) {
+                unknown++;
+            }
+        }
+        return unknown;
+    }
+
+    /**
+     *    Returns the current state of the agent.
+     *
+     *    @return the current state of the agent, as an object of class EFState
+    **/
+    public EFState getState()
+    {
+        return efstate;
+    }
+
+    /**
+     * Returns a consistent view of the state of the agent at the end of its
+     * last step. It can be called from any thread while the agent performs a
+     * step, without blocking it.
+     *
+     * @return the snapshot published at the end of the last step
+     */
+    public EFStateSnapshot getSnapshot()
+    {
+        return snapshot;
+    }
+
+    /**
+     * Publish a snapshot of the current state for getSnapshot(), tagged with
+     * the number of steps performed (not idNextStep, that in pipelined mode
+     * already counts the step being prefetched)
+     */
+    void publishSnapshot()
+    {
+        snapshot = efstate.snapshot(getNumStepsPerformed());
+    }
+
+    /**
+     * Append a checkpoint record to the file fileName after every step, so the
+     * knowledge of the agent can be restored later with restoreCheckpoint().
+     *
+     * @param fileName name of the checkpoint file
+     * @param syncInterval number of records between two syncs of the file to disk
+     * @throws IOException
+     */
+    public void setCheckpoint( String fileName, int syncInterval ) throws IOException {
+        checkpoint = new EFCheckpoint(fileName, WorldDim, syncInterval);
+    }
+
+    /**
+     * Flush and close the checkpoint file, if any
+     *
+     * @throws IOException
+     */
+    public void closeCheckpoint() throws IOException {
+        if (checkpoint != null) {
+            checkpoint.close();
+            checkpoint = null;
+        }
+    }
+
+    /**
+     * Export the state of knowledge to the file fileName as a frame after every
+     * step (see EFStateFrameWriter). The current state is exported as frame 0,
+     * so frame n is the state after n more steps.
+     *
+     * @param fileName name of the frames file
+     * @param keyframeInterval maximum number of frames between two keyframes
+     * @throws IOException
+     */
+    public void setFrameExport( String fileName, int keyframeInterval ) throws IOException {
+        frameExport = new EFStateFrameWriter(fileName, WorldDim, keyframeInterval);
+        frameExport.writeFrame(efstate);
+    }
+
+    /**
+     * Flush and close the frames file, if any
+     *
+     * @throws IOException
+     */
+    public void closeFrameExport() throws IOException {
+        if (frameExport != null) {
+            frameExport.close();
+            frameExport = null;
+        }
+    }
+
+    /**
+     * Restore the knowledge of the agent from a checkpoint file, without
+     * replaying the steps. The index of the next step, the agent position, the
+     * sensor readings and the discarded positions are loaded from the file, and
+     * the formula is rebuilt from them. With an inference budget, the positions
+     * still possible are queued to be checked against the restored readings. If
+     * a list of steps has to be followed, it must be loaded before calling this
+     * function.
+     *
+     * @param fileName name of the checkpoint file
+     * @throws IOException
+     * @throws ContradictionException
+     */
+    public void restoreCheckpoint( String fileName ) throws IOException, ContradictionException {
+        EFCheckpoint.restore(fileName, this);
+        // The steps that led to the restored knowledge are not known
+        cacheCursor = null;
+        lastReading = null;
+        // The restored evidence is new for the anytime inference
+        evidenceVersion++;
+        if (isAnytime()) {
+            queueUncheckedPositions();
         }
-        numMovements = listOfSteps.size(); // Initialization of numMovements
-        idNextStep = 0;
+        compactFormula();
+        publishSnapshot();
     }
 
     /**
-     *    Returns the current state of the agent.
+     * Record the conclusion that there is no envelope at (x,y)
      *
-     *    @return the current state of the agent, as an object of class EFState
-    **/
-    public EFState getState()
-    {
-        return efstate;
+     * @param x x coordinate of the position
+     * @param y y coordinate of the position
+     */
+    public void markNoEnvelope( int x, int y ) {
+        VecInt variablePositive = new VecInt();
+        variablePositive.insertFirst(coordToLineal(x, y, EnvelopeFutureOffset));
+        previousConsequences.add(variablePositive);
+        efstate.set( x , y , "X" );
     }
 
     /**
@@ -182,30 +955,306 @@ public class EnvelopeFinder  {
     **/
     public void runNextStep() throws IOException,  ContradictionException, TimeoutException
     {
-          
+          long start = System.nanoTime();
                                                             /*
           Add the conclusions obtained in the previous step
           but as clauses that use the "past" variables
                                                             */
           addLastFutureClausesToPastClauses();
-
-          // Ask to move, and check whether it was successful
-          processMoveAnswer( moveToNext( ) );
-
-
-          // Next, use Detector sensor to discover new information
-          processDetectorSensorAnswer( DetectsAt() );
-           
+          long moveStart = System.nanoTime();
+          long senseStart;
+          AMessage sensorAns;
+
+          if (pendingRoundTrip != null) {
+              // The messages were already sent during the previous step
+              AMessage[] answers = takeRoundTrip();
+              processMoveAnswer( answers[0] );
+              senseStart = System.nanoTime();
+              sensorAns = answers[1];
+          }
+          else {
+              // Ask to move, and check whether it was successful
+              processMoveAnswer( moveToNext( ) );
+              senseStart = System.nanoTime();
+              sensorAns = null;
+          }
+
+          // A position already sensed (a revisit, or staying after a failed
+          // move) can't give any new information
+          Position here = new Position(agentX, agentY);
+          boolean newEvidence = !sensorEvidence.containsKey(here);
+          if (newEvidence) {
+              if (sensorAns == null) {
+                  // Next, use Detector sensor to discover new information
+                  sensorAns = DetectsAt();
+              }
+              processDetectorSensorAnswer( sensorAns );
+          }
+          else {
+              lastReading = sensorEvidence.get(here);
+              System.out.println("FINDER => reading at (" + agentX + "," + agentY + ") already known: " + lastReading);
+          }
+
+          // Send the messages of the next step while the inference is performed
+          if (pipelined && !plannerMode && idNextStep < numMovements) {
+              startNextRoundTrip();
+          }
+          long inferenceStart = System.nanoTime();
 
           // Perform logical consequence questions for all the positions
           // of the Envelope World
-          performInferenceQuestions();
+          if (!newEvidence && (!isAnytime() || isInferenceComplete())) {
+              // Nothing new can be inferred
+              clearLastConclusions();
+          } else if (!newEvidence) {
+              // Go on with the work left by the budget of the previous steps
+              performInferenceQuestions();
+          } else if (cacheCursor != null && !isAnytime()) {
+              performCachedInference( sensorAns );
+          } else {
+              if (cacheCursor != null) {
+                  // The cursor can't follow a step that is not in the cache, and
+                  // the results of the next steps must not be stored under it
+                  System.out.println("FINDER => inference cache no longer used: step performed with a budget");
+                  cacheCursor = null;
+              }
+              performInferenceQuestions();
+          }
+          long inferenceEnd = System.nanoTime();
+
+          // Rebuild a lean formula if it has grown too much
+          stepsSinceCompaction++;
+          if (needsCompaction()) {
+              compactFormula();
+          }
+
+          // Save the new knowledge
+          if (checkpoint != null) {
+              checkpoint.writeStep(this);
+          }
+          if (frameExport != null) {
+              frameExport.writeFrame(efstate);
+          }
+          publishSnapshot();
 
           // Print the resulting knowledge matrix
           efstate.printState();
+
+          long end = System.nanoTime();
+          lastStepNanos[PHASE_MOVE] = senseStart - moveStart;
+          lastStepNanos[PHASE_SENSE] = inferenceStart - senseStart;
+          lastStepNanos[PHASE_INFERENCE] = inferenceEnd - inferenceStart;
+          lastStepNanos[PHASE_OTHER] = (moveStart - start) + (end - inferenceEnd);
+    }
+
+    /**
+     * Perform a step with readings obtained by other agents instead of moving
+     * and sensing: add all of them as evidence, and then perform the inference
+     * questions. Used by the coordinator of a CooperativeFinder team. As in
+     * runNextStep, the readings at positions already sensed are skipped, and
+     * without any new reading the inference is only performed to go on with
+     * the work left by the budget of the previous steps.
+     *
+     * @param readings answers of the environment to detectsat messages
+     * @throws IOException
+     * @throws ContradictionException
+     * @throws TimeoutException
+     */
+    public void runEvidenceStep( List<AMessage> readings ) throws IOException,  ContradictionException, TimeoutException
+    {
+          addLastFutureClausesToPastClauses();
+
+          boolean newEvidence = false;
+          for (AMessage ans : readings) {
+              Position pos = new Position(Integer.parseInt(ans.getComp(1)), Integer.parseInt(ans.getComp(2)));
+              if (!sensorEvidence.containsKey(pos)) {
+                  processDetectorSensorAnswer( ans );
+                  newEvidence = true;
+              }
+          }
+          if (!newEvidence && (!isAnytime() || isInferenceComplete())) {
+              // Nothing new can be inferred
+              clearLastConclusions();
+          } else {
+              performInferenceQuestions();
+          }
+
+          stepsSinceCompaction++;
+          if (needsCompaction()) {
+              compactFormula();
+          }
+          publishSnapshot();
+
+          efstate.printState();
+    }
+
+    /**
+     * Forget the conclusions of the last step, for a step that can't infer anything
+     */
+    void clearLastConclusions()
+    {
+        lastConclusions.clear();
+        lastPropagationConclusions = 0;
+        lastSatConclusions = 0;
+        lastWitnessHits = 0;
+    }
+
+    /**
+     * Send, in the environment thread, the move message of the next step and then
+     * the sensor message at the resulting position
+     */
+    void startNextRoundTrip()
+    {
+        Position nextPosition = listOfSteps.get(idNextStep);
+        idNextStep = idNextStep + 1;
+        int currentX = agentX, currentY = agentY;
+        // Readings already known are not asked for again (the answer is then null)
+        boolean nextKnown = sensorEvidence.containsKey(nextPosition);
+        boolean currentKnown = sensorEvidence.containsKey(new Position(currentX, currentY));
+
+        pendingRoundTrip = envExecutor.submit(() -> {
+            AMessage moveans = moveTo(nextPosition.x, nextPosition.y);
+            if (moveans.getComp(0).equals("movedto")) {
+                return new AMessage[] { moveans, nextKnown ? null
+                        : detectsAt(Integer.parseInt(moveans.getComp(1)), Integer.parseInt(moveans.getComp(2))) };
+            }
+            return new AMessage[] { moveans, currentKnown ? null : detectsAt(currentX, currentY) };
+        });
+    }
+
+    /**
+     * Get the number of steps whose answers have already been processed (in
+     * pipelined mode, idNextStep already counts the step being prefetched)
+     *
+     * @return the number of steps performed
+     */
+    public int getNumStepsPerformed()
+    {
+        return (pendingRoundTrip != null) ? idNextStep - 1 : idNextStep;
+    }
+
+    /**
+     * Wait for the answers of the messages sent by startNextRoundTrip
+     *
+     * @return the answers to the move and the sensor messages
+     * @throws IOException if the messages could not be sent
+     */
+    AMessage[] takeRoundTrip() throws IOException
+    {
+        try {
+            return pendingRoundTrip.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the environment", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Error in the interaction with the environment", ex.getCause());
+        } finally {
+            pendingRoundTrip = null;
+        }
+    }
+
+    /**
+     * Check whether any of the compaction triggers has been reached
+     *
+     * @return true if the formula should be rebuilt
+     */
+    public boolean needsCompaction() {
+        return (compactionInterval > 0 && stepsSinceCompaction >= compactionInterval)
+                || (compactionClauseThreshold > 0 && solver.nConstraints() > compactionClauseThreshold);
+    }
+
+    /**
+     * Replace the solver by a new one that only contains the rules of the world
+     * simplified with the positions already known to be empty, the unit clauses
+     * for those positions, and the sensor evidence that can still tell something
+     * about a position not yet discarded. Learned clauses and the accumulated
+     * past-variable unit clauses are dropped.
+     *
+     * @throws ContradictionException
+     */
+    public void compactFormula() throws ContradictionException {
+        System.out.println("FINDER => compacting formula (" + solver.nConstraints() + " constraints)");
+        buildSolver();
+
+        // Conclusions already obtained, as plain unit clauses
+        for (int x = 1; x <= WorldDim; x++) {
+            for (int y = 1; y <= WorldDim; y++) {
+                if (knownNoEnvelope(new Position(x, y))) {
+                    insertClause(new ArrayList<>(Arrays.asList(-coordToLineal(x, y, EnvelopeFutureOffset))));
+                }
+            }
+        }
+        // They are already in the formula, so they don't need to be rewritten as past clauses
+        futureToPast.clear();
+
+        // Evidence that still refers to some position not yet discarded
+        for (Map.Entry<Position, SensorReading> reading : sensorEvidence.entrySet()) {
+            if (hasUnknownNeighbour(reading.getKey())) {
+                addSensorEvidence(reading.getKey().getX(), reading.getKey().getY(), reading.getValue());
+            }
+        }
+        stepsSinceCompaction = 0;
+    }
+
+    /**
+     * Check whether the agent already knows that there is no envelope at pos
+     *
+     * @param pos x,y coordinate
+     * @return true if pos has been discarded as a possible envelope location
+     */
+    public boolean knownNoEnvelope(Position pos) {
+        return knownNoEnvelope(pos.getX(), pos.getY());
+    }
+
+    /**
+     * Check whether the agent already knows that there is no envelope at (x,y)
+     *
+     * @param x x coordinate
+     * @param y y coordinate
+     * @return true if (x,y) has been discarded as a possible envelope location
+     */
+    boolean knownNoEnvelope(int x, int y) {
+        return efstate != null && efstate.matrix[x-1][y-1].equals("X");
+    }
+
+    /**
+     * Check whether some position inside the 3x3 square around pos has not been
+     * discarded yet, so a reading at pos can still give some information
+     *
+     * @param pos x,y coordinate
+     * @return true if some position around pos is still unknown
+     */
+    public boolean hasUnknownNeighbour(Position pos) {
+        for (int x = pos.getX()-1; x <= pos.getX()+1; x++) {
+            for (int y = pos.getY()-1; y <= pos.getY()+1; y++) {
+                Position neighbour = new Position(x, y);
+                if (withinLimits(neighbour) && !knownNoEnvelope(neighbour)) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
 
+    /**
+    *   Check whether the agent has steps left to perform: steps of its list
+    *   not yet performed (including one already sent in pipelined mode) or, in
+    *   planner mode, steps left that can still discard some position.
+    *
+    *   @return true if runNextStep() would perform a step
+    **/
+    public boolean hasNextStep()
+    {
+        if (pendingRoundTrip != null) {
+            return true;
+        }
+        if (plannerMode) {
+            return idNextStep < numMovements && planNextStep() != null;
+        }
+        return listOfSteps != null && idNextStep < numMovements;
+    }
+
     /**
     *   Ask the agent to move to the next position, by sending an appropriate
     *   message to the environment object. The answer returned by the environment
@@ -218,7 +1267,16 @@ public class EnvelopeFinder  {
     {
         Position nextPosition;
 
-        if (idNextStep < numMovements) {
+        if (plannerMode && idNextStep < numMovements) {
+            nextPosition = planNextStep();
+            if (nextPosition != null) {
+                idNextStep = idNextStep + 1;
+                return moveTo(nextPosition.x, nextPosition.y);
+            }
+            System.out.println("NO MORE steps to perform at agent!");
+            return (new AMessage("NOMESSAGE","","", ""));
+        }
+        else if (!plannerMode && idNextStep < numMovements) {
             nextPosition = listOfSteps.get(idNextStep);
             idNextStep = idNextStep + 1;
             return moveTo(nextPosition.x, nextPosition.y);
@@ -275,12 +1333,25 @@ public class EnvelopeFinder  {
      *   @return return the answer given by the environment
     **/
     public AMessage DetectsAt( )
+    {
+        return detectsAt(agentX, agentY);
+    }
+
+    /**
+     *   Send to the environment object the question:
+     *   "Does the detector sense something around(x,y) ?"
+     *
+     *   @param x x coordinate of the position
+     *   @param y y coordinate of the position
+     *   @return return the answer given by the environment
+    **/
+    AMessage detectsAt( int x, int y )
     {
         AMessage msg, ans;
 
-        msg = new AMessage( "detectsat", (new Integer(agentX)).toString(), (new Integer(agentY)).toString(), "" );
+        msg = new AMessage( "detectsat", Integer.toString(x), Integer.toString(y), "" );
         ans = EnvAgent.acceptMessage( msg );
-        System.out.println("FINDER => detecting at : (" + agentX + "," + agentY + ") Sensors output: " + ans.getComp(0));
+        System.out.println("FINDER => detecting at : (" + x + "," + y + ") Sensors output: " + ans.getComp(0));
         return ans;
     }
 
@@ -300,51 +1371,101 @@ public class EnvelopeFinder  {
 
         int x = Integer.parseInt(ans.getComp(1));
         int y = Integer.parseInt(ans.getComp(2));
-        String sensorsOutput = ans.getComp(0);
-
-         // Add the evidence clauses to Gamma to then be able to infer new NOT possible positions
-
-        switch (sensorsOutput){
-            case "1":
-                // Sensor 1 has detected an envelope
-                insertClause(new ArrayList<>(Arrays.asList(coordToLineal(x, y, Sensor1Offset))));
-                insertClause(new ArrayList<>(Arrays.asList(-coordToLineal(x, y, Sensor2Offset))));
-                insertClause(new ArrayList<>(Arrays.asList(-coordToLineal(x, y, Sensor3Offset))));
-                break;
-            case "2":
-                // Sensor 2 has detected an envelope
-                insertClause(new ArrayList<>(Arrays.asList(-coordToLineal(x, y, Sensor1Offset))));
-                insertClause(new ArrayList<>(Arrays.asList(coordToLineal(x, y, Sensor2Offset))));
-                insertClause(new ArrayList<>(Arrays.asList(-coordToLineal(x, y, Sensor3Offset))));
-                break;
-            case "3":
-                // Sensor 3 has detected an envelope
-                insertClause(new ArrayList<>(Arrays.asList(-coordToLineal(x, y, Sensor1Offset))));
-                insertClause(new ArrayList<>(Arrays.asList(-coordToLineal(x, y, Sensor2Offset))));
-                insertClause(new ArrayList<>(Arrays.asList(coordToLineal(x, y, Sensor3Offset))));
-                break;
-            case "12":
-                // Sensor 1 and 2 have detected envelopes
-                insertClause(new ArrayList<>(Arrays.asList(coordToLineal(x, y, Sensor1Offset))));
-                insertClause(new ArrayList<>(Arrays.asList(coordToLineal(x, y, Sensor2Offset))));
-                break;
-            case "13":
-                // Sensor 1 and 3 have detected envelopes
-                insertClause(new ArrayList<>(Arrays.asList(coordToLineal(x, y, Sensor1Offset))));
-                insertClause(new ArrayList<>(Arrays.asList(coordToLineal(x, y, Sensor3Offset))));
-                break;
-            case "23":
-                // Sensor 2 and 3 have detected envelopes
-                insertClause(new ArrayList<>(Arrays.asList(coordToLineal(x, y, Sensor2Offset))));
-                insertClause(new ArrayList<>(Arrays.asList(coordToLineal(x, y, Sensor3Offset))));
-                break;
-            case "":
-                // Sensor 1,2 and 3 haven't detected envelopes
-                insertClause(new ArrayList<>(Arrays.asList(-coordToLineal(x, y, Sensor1Offset))));
-                insertClause(new ArrayList<>(Arrays.asList(-coordToLineal(x, y, Sensor2Offset))));
-                insertClause(new ArrayList<>(Arrays.asList(-coordToLineal(x, y, Sensor3Offset))));
-                break;
+        SensorReading reading = SensorReading.parse(ans.getComp(0));
+
+        sensorEvidence.put(new Position(x, y), reading);
+        lastReading = reading;
+        addSensorEvidence(x, y, reading);
+        evidenceVersion++;
+    }
+
+    /**
+     * Add to the formula the unit clauses that state the sensors output
+     * obtained at (x,y) (and its detection clauses, if the number of envelopes
+     * is known)
+     *
+     * @param x x coordinate of the reading
+     * @param y y coordinate of the reading
+     * @param reading output of the sensors at (x,y)
+     * @throws ContradictionException
+     */
+    public void addSensorEvidence( int x, int y, SensorReading reading ) throws ContradictionException
+    {
+        if (witnesses != null) {
+            updateWitnesses(x, y, reading);
+        }
+        if (envelopeCount > 0) {
+            addDetectionClauses(x, y, reading);
         }
+        if (encoding == GammaEncoding.COMPACT) {
+            // The reading is directly compiled into the positions it discards
+            for (int k = 0; k < reading.forbiddenCount(); k++) {
+                int px = x + reading.forbiddenDx(k), py = y + reading.forbiddenDy(k);
+                if (withinLimits(px, py) && !knownNoEnvelope(px, py)) {
+                    insertClause(new ArrayList<>(Arrays.asList(-coordToLineal(px, py, EnvelopeFutureOffset))));
+                }
+            }
+            return;
+        }
+        if (!cellsWithSensorClauses.contains(new Position(x, y))) {
+            // Lazy encoding: first reading at this position
+            generateSensorClauses(x, y);
+        }
+
+        // Add the evidence clauses to Gamma to then be able to infer new NOT possible positions:
+        // one unit clause per sensor, positive if it has detected an envelope
+        for (int sensor = 1; sensor <= SensorReading.NUM_SENSORS; sensor++) {
+            int literal = coordToLineal(x, y, sensorOffset(sensor));
+            insertClause(new ArrayList<>(Arrays.asList(reading.detects(sensor) ? literal : -literal)));
+        }
+    }
+
+    /**
+     * Drop the witness models that disagree with a new reading: those with an
+     * envelope where the reading says that there can't be one and, if the
+     * number of envelopes is known, those with no envelope in the scope of a
+     * sensor that detects one
+     *
+     * @param x x coordinate of the reading
+     * @param y y coordinate of the reading
+     * @param reading the output of the sensors
+     */
+    void updateWitnesses( int x, int y, SensorReading reading )
+    {
+        BitSet forbidden = new BitSet(WorldLinealDim);
+        for (int k = 0; k < reading.forbiddenCount(); k++) {
+            int px = x + reading.forbiddenDx(k), py = y + reading.forbiddenDy(k);
+            if (withinLimits(px, py)) {
+                forbidden.set(coordToLineal(px, py, 0));
+            }
+        }
+        ArrayList<BitSet> required = new ArrayList<>();
+        if (envelopeCount > 0) {
+            for (int sensor = 1; sensor <= SensorReading.NUM_SENSORS; sensor++) {
+                if (reading.detects(sensor)) {
+                    BitSet scope = new BitSet(WorldLinealDim);
+                    for (int k = 0; k < SensorReading.scopeSize(sensor); k++) {
+                        int px = x + SensorReading.scopeDx(sensor, k), py = y + SensorReading.scopeDy(sensor, k);
+                        if (withinLimits(px, py)) {
+                            scope.set(coordToLineal(px, py, 0));
+                        }
+                    }
+                    required.add(scope);
+                }
+            }
+        }
+        witnesses.retainConsistent(forbidden, required);
+    }
+
+    /**
+     * Get the offset of the variables of a sensor
+     *
+     * @param sensor number of the sensor, in the range [1,3]
+     * @return offset of its variables
+     */
+    int sensorOffset( int sensor )
+    {
+        return sensor == 1 ? Sensor1Offset : (sensor == 2 ? Sensor2Offset : Sensor3Offset);
     }
 
     /**
@@ -357,7 +1478,13 @@ public class EnvelopeFinder  {
     {
         while(futureToPast.size() > 0){
             VecInt clause = futureToPast.remove(0);
-            solver.addClause(clause);
+            if (encoding == GammaEncoding.LAZY) {
+                // The link between past and future variables is only needed
+                // once the past variable has been set
+                int[] coords = linealToCoord(-clause.get(0), EnvelopePastOffset);
+                insertLinkClause(coords[0], coords[1]);
+            }
+            addClause(clause);
         }
     }
 
@@ -376,37 +1503,167 @@ public class EnvelopeFinder  {
     **/
     public void  performInferenceQuestions() throws  IOException, ContradictionException, TimeoutException
     {
-        // Generate all possible positions
-        for(int x = 1; x <= WorldDim; x++){
-            for(int y = 1; y <= WorldDim; y++){
-
-                // Get variable number for position x,y in future variables
-                int linealIndex = coordToLineal(x, y, EnvelopeFutureOffset);
-
-                // Get the same variable, but in the past subset
-                int linealIndexPast = coordToLineal(x, y, EnvelopePastOffset);
-
-                // Gamma + Evidence + variablePositive is UNSAT?
-                VecInt variablePositive = new VecInt();
-                variablePositive.insertFirst(linealIndex);
-
-                // Check if the conclusion hasn't appeared before
-                if(!previousConsequences.contains(variablePositive)){
-                    if (!(solver.isSatisfiable(variablePositive))) {
-                        // Add conclusion to list, but rewritten with respect to "past" variables
-                        previousConsequences.add(variablePositive);
-                        VecInt concPast = new VecInt();
-                        concPast.insertFirst(-(linealIndexPast));
-                        futureToPast.add(concPast);
-                        efstate.set( x , y , "X" );
+        lastConclusions.clear();
+        lastPropagationConclusions = 0;
+        lastSatConclusions = 0;
+        lastWitnessHits = 0;
+        if (isAnytime()) {
+            performBudgetedInference();
+        } else {
+            // Generate all possible positions
+            for(int x = 1; x <= WorldDim; x++){
+                for(int y = 1; y <= WorldDim; y++){
+                    inferPosition(x, y);
+                }
+            }
+        }
+        System.out.println("FINDER => inference: " + lastPropagationConclusions + " by propagation, "
+                + lastSatConclusions + " by SAT, " + lastWitnessHits + " kept by witness models");
+    }
+
+    /**
+    * Check whether it is a logical consequence that there is no envelope at (x,y),
+    * and store the conclusion as performInferenceQuestions() does
+    *
+    * @param x x coordinate of the position
+    * @param y y coordinate of the position
+    * @return true if there can't be an envelope at (x,y)
+    **/
+    public boolean inferPosition( int x, int y ) throws TimeoutException
+    {
+        // Get variable number for position x,y in future variables
+        int linealIndex = coordToLineal(x, y, EnvelopeFutureOffset);
+
+        // Get the same variable, but in the past subset
+        int linealIndexPast = coordToLineal(x, y, EnvelopePastOffset);
+
+        VecInt variablePositive = new VecInt();
+        variablePositive.insertFirst(linealIndex);
+
+        // Check if the conclusion hasn't appeared before
+        if(!previousConsequences.contains(variablePositive)){
+            // First tier: unit propagation; second tier: Gamma + Evidence + variablePositive is UNSAT?
+            boolean propagated = propagator.isFalse(linealIndex);
+            if (!propagated && witnesses != null && witnesses.hasWitness(linealIndex - EnvelopeFutureOffset)) {
+                // A model found before still satisfies all the evidence
+                lastWitnessHits++;
+                return false;
+            }
+            if (!propagated) {
+                numSatCalls++;
+            }
+            if (propagated || !(solver.isSatisfiable(variablePositive))) {
+                if (propagated) {
+                    lastPropagationConclusions++;
+                } else {
+                    lastSatConclusions++;
+                }
+                // Add conclusion to list, but rewritten with respect to "past" variables
+                previousConsequences.add(variablePositive);
+                VecInt concPast = new VecInt();
+                concPast.insertFirst(-(linealIndexPast));
+                futureToPast.add(concPast);
+                efstate.set( x , y , "X" );
+                lastConclusions.add(new Position(x, y));
+                return true;
+            }
+            if (witnesses != null) {
+                BitSet envelopes = new BitSet(WorldLinealDim);
+                for (int lineal = 0; lineal < WorldLinealDim; lineal++) {
+                    if (solver.model(EnvelopeFutureOffset + lineal)) {
+                        envelopes.set(lineal);
+                    }
+                }
+                witnesses.addModel(envelopes);
+            }
+            return false;
+        }
+        // The conclusion has appeared earlier
+        else
+        {
+            efstate.set( x , y , "X" );
+            return true;
+        }
+    }
+
+    /**
+     * Append to the work queue of the anytime inference every position not yet
+     * discarded that has not been checked against the current evidence, unless
+     * it is already there
+     */
+    void queueUncheckedPositions()
+    {
+        for (int lineal = 0; lineal < WorldLinealDim; lineal++) {
+            int x = lineal / WorldDim + 1;
+            int y = lineal % WorldDim + 1;
+            if (!queuedPositions[lineal] && checkedVersion[lineal] != evidenceVersion && !knownNoEnvelope(x, y)) {
+                inferenceQueue.addLast(lineal);
+                queuedPositions[lineal] = true;
+            }
+        }
+    }
+
+    /**
+    * Inference limited by the budget of a step. Every position not yet discarded
+    * that has not been checked against the current evidence is appended to the
+    * work queue (unless it is already there, waiting since a previous step), and
+    * the positions around the last reading are moved to the front. Then positions
+    * are taken from the queue until it is empty or the budget is used up. A
+    * position whose SAT call runs out of time goes back to the front of the queue.
+    **/
+    void performBudgetedInference()
+    {
+        queueUncheckedPositions();
+        // The positions around the last reading are the most likely to change
+        if (withinLimits(new Position(agentX, agentY))) {
+            for (int x = agentX - 1; x <= agentX + 1; x++) {
+                for (int y = agentY - 1; y <= agentY + 1; y++) {
+                    if (withinLimits(new Position(x, y))) {
+                        inferenceQueue.addFirst(coordToLineal(x, y, 0));
                     }
                 }
-                // The conclusion has appeared earlier
-                else
-                {
-                    efstate.set( x , y , "X" );
+            }
+        }
+
+        long start = System.nanoTime();
+        int satCalls = 0;
+        try {
+            while (!inferenceQueue.isEmpty()) {
+                long left = inferenceTimeBudget - (System.nanoTime() - start);
+                if ((inferenceSatCallBudget > 0 && satCalls >= inferenceSatCallBudget)
+                        || (inferenceTimeBudget > 0 && left <= 0)) {
+                    break;
+                }
+                int lineal = inferenceQueue.pollFirst();
+                queuedPositions[lineal] = false;
+                int x = lineal / WorldDim + 1;
+                int y = lineal % WorldDim + 1;
+                if (knownNoEnvelope(new Position(x, y)) || checkedVersion[lineal] == evidenceVersion) {
+                    // Discarded, or already checked (it was in the queue twice)
+                    continue;
+                }
+                if (inferenceTimeBudget > 0) {
+                    solver.setTimeoutMs((left + 999999) / 1000000);
+                }
+                // Positions discarded by unit propagation don't use the budget
+                long satCallsBefore = numSatCalls;
+                try {
+                    if (!inferPosition(x, y)) {
+                        checkedVersion[lineal] = evidenceVersion;
+                    }
+                } catch (TimeoutException ex) {
+                    // Still unknown: the budget of the step is used up
+                    inferenceQueue.addFirst(lineal);
+                    queuedPositions[lineal] = true;
+                    break;
+                } finally {
+                    satCalls += numSatCalls - satCallsBefore;
                 }
             }
+        } finally {
+            if (inferenceTimeBudget > 0) {
+                configureTimeout();
+            }
         }
     }
 
@@ -417,22 +1674,65 @@ public class EnvelopeFinder  {
     *  @return returns the solver object where the formula has been stored
     **/
     public ISolver buildGamma() throws UnsupportedEncodingException, FileNotFoundException, IOException, ContradictionException
+    {
+        buildSolver();
+        return solver;
+    }
+
+    /**
+     * Create a new solver object with the rules of the world. The clauses that
+     * are already satisfied by the positions known to be empty are not added.
+     *
+     * @throws ContradictionException
+     */
+    public void buildSolver() throws ContradictionException
     {
         // Total number of boolean variables in gamma formula
-        int totalNumVariables = WorldLinealDim * 5;
+        int totalNumVariables = (encoding == GammaEncoding.COMPACT) ? WorldLinealDim : WorldLinealDim * 5;
 
 
         solver = SolverFactory.newDefault();
-        solver.setTimeout(3600);
+        configureTimeout();
         solver.newVar(totalNumVariables);
+        propagator = new UnitPropagator(totalNumVariables);
+        witnesses = maxWitnessModels > 0 ? new WitnessCache(maxWitnessModels) : null;
+        hypothesisSelectors.clear();
         // This variable is used to generate, in a particular sequential order,
         // the variable identifiers of all the variables
         actualLiteral = 1;
 
         // Add all the clauses
-        generateClauses();
+        if (encoding == GammaEncoding.COMPACT) {
+            generateCompactClauses();
+        } else {
+            generateClauses();
+        }
+        addEnvelopeCountConstraint();
+        stepsSinceCompaction = 0;
+    }
 
-        return solver;
+    /**
+     * This function generates the clauses of the compact encoding, where there is
+     * only one envelope variable per position (used both as past and future
+     * variable) and the sensor readings are added later as unit clauses
+     * @throws ContradictionException
+     */
+    public void generateCompactClauses() throws ContradictionException {
+
+        EnvelopePastOffset = actualLiteral;
+        EnvelopeFutureOffset = actualLiteral;
+
+        // Clause that says that the envelopes must be in some position
+        VecInt envelopeClause = new VecInt();
+        for (int x = 1; x <= WorldDim; x++) {
+            for (int y = 1; y <= WorldDim; y++) {
+                if (!knownNoEnvelope(new Position(x, y))) {
+                    envelopeClause.insertFirst(coordToLineal(x, y, EnvelopeFutureOffset));
+                }
+            }
+        }
+        actualLiteral += WorldLinealDim;
+        addClause(envelopeClause);
     }
 
     /**
@@ -441,12 +1741,35 @@ public class EnvelopeFinder  {
      */
     public void generateClauses() throws ContradictionException {
 
+        // Envelope clauses, and then the sensor clauses of every position
+        generateEnvelopeClauses(encoding != GammaEncoding.LAZY);
+
+        if (encoding != GammaEncoding.LAZY) {
+            for (int x = 1; x <= WorldDim; x++) {
+                for (int y = 1; y <= WorldDim; y++) {
+                    generateSensorClauses(x, y);
+                }
+            }
+        }
+    }
+
+    /**
+     * This function sets the offsets of the five sets of variables, and adds
+     * the clauses saying that the envelopes must be in some position
+     * @param withLinks whether to add also the clauses that link the past and
+     *                  future variables of every position
+     * @throws ContradictionException
+     */
+    public void generateEnvelopeClauses(boolean withLinks) throws ContradictionException {
+
         // Get the offsets
         EnvelopePastOffset = actualLiteral;
         EnvelopeFutureOffset = EnvelopePastOffset + WorldLinealDim;
         Sensor1Offset = EnvelopeFutureOffset + WorldLinealDim;
         Sensor2Offset = Sensor1Offset + WorldLinealDim;
         Sensor3Offset = Sensor2Offset + WorldLinealDim;
+        actualLiteral += WorldLinealDim * 5;
+        cellsWithSensorClauses.clear();
 
         // Clause that says that the envelopes must be in some position
         // with respect to the variables that talk about past positions
@@ -456,115 +1779,81 @@ public class EnvelopeFinder  {
         // with respect to the variables that talk about future positions
         VecInt futureClause = new VecInt();
 
-        // For each possible position in the world generate the respective clauses
-        for (int i = 0; i < WorldLinealDim; i++) {
-            // For the same position, get the respective literal for each variable
-            int currentEnvPastLiteral = actualLiteral;
-            int currentEnvFutureLiteral = actualLiteral + WorldLinealDim;
-            int currentSensor1Literal = actualLiteral + WorldLinealDim * 2;
-            int currentSensor2Literal = actualLiteral + WorldLinealDim * 3;
-            int currentSensor3Literal = actualLiteral + WorldLinealDim * 4;
-
-            // Get current 2-D position
-            int[] sensorCoords =  linealToCoord(actualLiteral, 1);
-            int sensor_x = sensorCoords[0];
-            int sensor_y = sensorCoords[1];
-
-            // Add the variables to the future and past clauses that say that the envelopes must be in some position
-            pastClause.insertFirst(currentEnvPastLiteral);
-            futureClause.insertFirst(currentEnvFutureLiteral);
-
-
-            /*
-             * Add the clause that says that if in the past we reached the conclusion
-             * that an envelope cannot be in a position (x,y), then this should be also true
-             * in the future
-             */
-            insertClause(new ArrayList<>(Arrays.asList(currentEnvPastLiteral, -currentEnvFutureLiteral)));
-
-
-            /*
-             * Add the clause related to implications between the sensor 1 evidence and
-             * the envelopes forbidden positions
-             */
-            insertSensorClause(
-                    getForbiddenEnvelopesPositions(new Position(sensor_x, sensor_y), "1"),
-                    new ArrayList<>(Arrays.asList(-currentSensor1Literal, currentSensor2Literal, currentSensor3Literal))
-            );
-
-            /*
-             * Add the clause related to implications between the sensor 2 evidence and
-             * the envelopes forbidden positions
-             */
-            insertSensorClause(
-                    getForbiddenEnvelopesPositions(new Position(sensor_x, sensor_y), "2"),
-                    new ArrayList<>(Arrays.asList(-currentSensor2Literal, currentSensor1Literal, currentSensor3Literal))
-            );
-
-            /*
-             * Add the clause related to implications between the sensor 3 evidence and
-             * the envelopes forbidden positions
-             */
-            insertSensorClause(
-                    getForbiddenEnvelopesPositions(new Position(sensor_x, sensor_y), "3"),
-                    new ArrayList<>(Arrays.asList(-currentSensor3Literal, currentSensor1Literal, currentSensor2Literal))
-            );
-
-            /*
-             * Add the clause related to implications between the sensor 1 and 2 evidence and
-             * the envelopes forbidden positions
-             */
-            insertSensorClause(
-                    getForbiddenEnvelopesPositions(new Position(sensor_x, sensor_y), "12"),
-                    new ArrayList<>(Arrays.asList(-currentSensor1Literal, -currentSensor2Literal))
-            );
-
-            /*
-             * Add the clause related to implications between the sensor 1 and 3 evidence and
-             * the envelopes forbidden positions
-             */
-            insertSensorClause(
-                    getForbiddenEnvelopesPositions(new Position(sensor_x, sensor_y), "13"),
-                    new ArrayList<>(Arrays.asList(-currentSensor1Literal, -currentSensor3Literal))
-            );
-
-            /*
-             * Add the clause related to implications between the sensor 2 and 3 evidence and
-             * the envelopes forbidden positions
-             */
-            insertSensorClause(
-                    getForbiddenEnvelopesPositions(new Position(sensor_x, sensor_y), "23"),
-                    new ArrayList<>(Arrays.asList(-currentSensor2Literal, -currentSensor3Literal))
-            );
-
-            /*
-             * Add the clause related to no detection implications evidence and
-             * the envelopes forbidden positions
-             */
-            insertSensorClause(
-                    getForbiddenEnvelopesPositions(new Position(sensor_x, sensor_y), ""),
-                    new ArrayList<>(Arrays.asList(currentSensor1Literal, currentSensor2Literal, currentSensor3Literal))
-            );
-
-            actualLiteral++;
-        }
-        solver.addClause(pastClause);
-        solver.addClause(futureClause);
+        for (int x = 1; x <= WorldDim; x++) {
+            for (int y = 1; y <= WorldDim; y++) {
+                // Add the variables to the future and past clauses that say that the envelopes must be in some position
+                // (positions already discarded can be left out)
+                if (!knownNoEnvelope(new Position(x, y))) {
+                    pastClause.insertFirst(coordToLineal(x, y, EnvelopePastOffset));
+                    futureClause.insertFirst(coordToLineal(x, y, EnvelopeFutureOffset));
+
+                    if (withLinks) {
+                        insertLinkClause(x, y);
+                    }
+                }
+            }
+        }
+        addClause(pastClause);
+        addClause(futureClause);
+    }
+
+    /**
+     * Add the clause that says that if in the past we reached the conclusion
+     * that an envelope cannot be in a position (x,y), then this should be also true
+     * in the future
+     * @param x x coordinate of the position
+     * @param y y coordinate of the position
+     * @throws ContradictionException
+     */
+    public void insertLinkClause(int x, int y) throws ContradictionException {
+        insertClause(new ArrayList<>(Arrays.asList(coordToLineal(x, y, EnvelopePastOffset), -coordToLineal(x, y, EnvelopeFutureOffset))));
+    }
+
+    /**
+     * This function generates the clauses with the implications between the sensors
+     * of position (x,y) and the envelopes forbidden positions: for each reading that
+     * forbids some position, the conjunction of the three sensor literals of that
+     * reading implies that there is no envelope at each forbidden position
+     * @param sensor_x x coordinate of the sensors
+     * @param sensor_y y coordinate of the sensors
+     * @throws ContradictionException
+     */
+    public void generateSensorClauses(int sensor_x, int sensor_y) throws ContradictionException {
+        cellsWithSensorClauses.add(new Position(sensor_x, sensor_y));
+
+        for (int mask = 0; mask < (1 << SensorReading.NUM_SENSORS); mask++) {
+            SensorReading reading = SensorReading.of(mask);
+            if (reading == SensorReading.ALL) {
+                // It doesn't discard any position
+                continue;
+            }
+            // Negation of the reading: some sensor has a different output
+            ArrayList<Integer> clause = new ArrayList<>();
+            for (int sensor = 1; sensor <= SensorReading.NUM_SENSORS; sensor++) {
+                int literal = coordToLineal(sensor_x, sensor_y, sensorOffset(sensor));
+                clause.add(reading.detects(sensor) ? -literal : literal);
+            }
+            insertSensorClause(sensor_x, sensor_y, reading, clause);
+        }
     }
 
     /**
      * For an specific position, add all the clauses related to the implications between the sensors
      * that are activated and the forbidden positions.
-     * @param noEnvelopesPositions Positions you know for sure where there won't be an envelope
+     * @param sensor_x x coordinate of the sensors
+     * @param sensor_y y coordinate of the sensors
+     * @param reading reading whose forbidden positions are the ones you know for sure where there won't be an envelope
      * @param clause List that contains the sensor variables of the clause, the sensors that are or not activated
      * @throws ContradictionException
      */
-    public void insertSensorClause(ArrayList<Position> noEnvelopesPositions, ArrayList<Integer> clause) throws ContradictionException {
+    public void insertSensorClause(int sensor_x, int sensor_y, SensorReading reading, ArrayList<Integer> clause) throws ContradictionException {
         // Positions you know for sure where there won't be an envelope
-        for(Position pos: noEnvelopesPositions){
-            if(withinLimits(pos)){
+        for(int k = 0; k < reading.forbiddenCount(); k++){
+            int x = sensor_x + reading.forbiddenDx(k), y = sensor_y + reading.forbiddenDy(k);
+            // Clauses about positions already discarded are always satisfied
+            if(withinLimits(x, y) && !knownNoEnvelope(x, y)){
                 // Add to the clause the position you know there won't be an envelope
-                clause.add(-coordToLineal(pos.getX(), pos.getY(), EnvelopeFutureOffset));
+                clause.add(-coordToLineal(x, y, EnvelopeFutureOffset));
                 // Clause completed
                 insertClause(clause);
                 // Get back the clause without the position you know there won't be an envelope
@@ -579,38 +1868,8 @@ public class EnvelopeFinder  {
      * @param sensorsOutput Output of the sensors
      * @return A list of positions where you know for sure the envelopes won't be
      */
-    public ArrayList<Position> getForbiddenEnvelopesPositions (Position pos, String sensorsOutput){
-        ArrayList<Position> output = new ArrayList<>();
-
-        switch (sensorsOutput){
-            case "1":
-                output = getSensor2Scope(pos);
-                output.addAll(getSensor3Scope(pos));
-                break;
-            case "2":
-                output = getSensor1Scope(pos);
-                output.addAll(getSensor3Scope(pos));
-                break;
-            case "3":
-                output = getSensor1Scope(pos);
-                output.addAll(getSensor2Scope(pos));
-                break;
-            case "12":
-                output = getSensor3Scope(pos);
-                break;
-            case "13":
-                output = getSensor2Scope(pos);
-                break;
-            case "23":
-                output = getSensor1Scope(pos);
-                break;
-            case "":
-                output = getSensor1Scope(pos);
-                output.addAll(getSensor2Scope(pos));
-                output.addAll(getSensor3Scope(pos));
-                break;
-        }
-       return output;
+    public static ArrayList<Position> getForbiddenEnvelopesPositions (Position pos, String sensorsOutput){
+        return SensorReading.parse(sensorsOutput).getForbiddenPositions(pos);
     }
 
     /**
@@ -618,15 +1877,8 @@ public class EnvelopeFinder  {
      * @param pos The current position of the agent
      * @return A list of positions the sensor 1 is able to detect
      */
-    public ArrayList<Position> getSensor1Scope (Position pos){
-        int x = pos.getX();
-        int y = pos.getY();
-        return new ArrayList<>(Arrays.asList(
-                new Position(x+1, y),
-                new Position(x-1,y),
-                new Position(x, y-1),
-                new Position(x, y+1)
-        ));
+    public static ArrayList<Position> getSensor1Scope (Position pos){
+        return SensorReading.getScope(1, pos);
     }
 
     /**
@@ -634,15 +1886,8 @@ public class EnvelopeFinder  {
      * @param pos The current position of the agent
      * @return A list of positions the sensor 2 is able to detect
      */
-    public ArrayList<Position> getSensor2Scope (Position pos){
-        int x = pos.getX();
-        int y = pos.getY();
-        return new ArrayList<>(Arrays.asList(
-                new Position(x-1, y-1),
-                new Position(x+1,y-1),
-                new Position(x-1, y+1),
-                new Position(x+1, y+1)
-        ));
+    public static ArrayList<Position> getSensor2Scope (Position pos){
+        return SensorReading.getScope(2, pos);
     }
 
     /**
@@ -650,12 +1895,8 @@ public class EnvelopeFinder  {
      * @param pos The current position of the agent
      * @return A list of positions the sensor 3 is able to detect
      */
-    public ArrayList<Position> getSensor3Scope (Position pos){
-        int x = pos.getX();
-        int y = pos.getY();
-        return new ArrayList<>(Arrays.asList(
-                new Position(x, y)
-        ));
+    public static ArrayList<Position> getSensor3Scope (Position pos){
+        return SensorReading.getScope(3, pos);
     }
 
     /**
@@ -669,6 +1910,16 @@ public class EnvelopeFinder  {
         for(int variable: vars){
             clause.insertFirst(variable);
         }
+        addClause(clause);
+    }
+
+    /**
+     * Add a clause to the solver and to the unit propagator
+     * @param clause the clause
+     * @throws ContradictionException
+     */
+    void addClause(VecInt clause) throws ContradictionException {
+        propagator.addClause(clause);
         solver.addClause(clause);
     }
 
@@ -716,6 +1967,18 @@ public class EnvelopeFinder  {
      * @return true if (x,y) is within the limits of the world
      **/
     public boolean withinLimits(Position pos) {
-        return (pos.getX() >= 1 && pos.getX() <= WorldDim && pos.getY() >= 1 && pos.getY() <= WorldDim);
+        return withinLimits(pos.getX(), pos.getY());
+    }
+
+    /**
+     * Check if position x,y is within the limits of the
+     * WorldDim x WorldDim   world
+     *
+     * @param x x coordinate
+     * @param y y coordinate
+     * @return true if (x,y) is within the limits of the world
+     **/
+    boolean withinLimits(int x, int y) {
+        return (x >= 1 && x <= WorldDim && y >= 1 && y <= WorldDim);
     }
 }
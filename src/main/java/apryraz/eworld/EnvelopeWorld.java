@@ -16,6 +16,17 @@ import org.sat4j.reader.*;
  * The class for the main program of the Envelope World
  **/
 public class EnvelopeWorld {
+
+    /**
+     * Name given instead of a steps file to let the agent plan its own steps
+     **/
+    static final String PLANNER_STEPS = "-";
+
+    /**
+     * Optional last argument to print the statistics of the run (--stats) or
+     * also write them in a file (--stats=FILE, CSV if FILE ends with .csv, JSON otherwise)
+     **/
+    static final String STATS_OPTION = "--stats";
     
     /**
      * This function execute the sequence of steps stored in the file fileSteps,
@@ -24,36 +35,101 @@ public class EnvelopeWorld {
      *
      * @param wDim          the dimension of world
      * @param numSteps      num of steps to perform
-     * @param fileSteps     file name with sequence of steps to perform
+     * @param fileSteps     file name with sequence of steps to perform, or "-" to
+     *                      let the agent plan up to numSteps steps
      * @param fileEnvelopes file name with envelopes positions
      **/
     public static void runStepsSequence (int wDim, int numSteps, String fileSteps, String fileEnvelopes) throws IOException, ContradictionException, TimeoutException {
+        runStepsSequence(wDim, numSteps, fileSteps, fileEnvelopes, null);
+    }
+
+    /**
+     * Same as runStepsSequence(wDim, numSteps, fileSteps, fileEnvelopes), but
+     * recording the statistics of every step.
+     *
+     * @param wDim          the dimension of world
+     * @param numSteps      num of steps to perform
+     * @param fileSteps     file name with sequence of steps to perform, or "-" to
+     *                      let the agent plan up to numSteps steps
+     * @param fileEnvelopes file name with envelopes positions
+     * @param fileStats     null to not record statistics, "" to only print them,
+     *                      or the file name where to write them too
+     **/
+    public static void runStepsSequence (int wDim, int numSteps, String fileSteps, String fileEnvelopes, String fileStats) throws IOException, ContradictionException, TimeoutException {
+
+        EnvelopeFinder FinderEAgent = newFinder(wDim, numSteps, fileSteps, fileEnvelopes);
 
+        RunStatistics stats = fileStats == null ? null : new RunStatistics(FinderEAgent);
+
+        if (fileSteps.equals(PLANNER_STEPS)) {
+            // Let the agent choose the steps, until it can't learn anything new
+            for(int i = 0; i < numSteps && !FinderEAgent.isFullyDetermined(); i++){
+                FinderEAgent.runNextStep();
+                if (stats != null) stats.recordStep(FinderEAgent);
+            }
+        }
+        else {
+            // Execute sequence of steps with the Agent
+            for(int i = 0; i < numSteps; i++){
+                FinderEAgent.runNextStep();
+                if (stats != null) stats.recordStep(FinderEAgent);
+            }
+        }
+
+        if (stats != null) {
+            stats.printReport(System.out);
+            if (!fileStats.isEmpty()) {
+                stats.writeReport(fileStats);
+            }
+        }
+    }
+
+    /**
+     * Same as runStepsSequence(wDim, numSteps, fileSteps, fileEnvelopes), but
+     * the steps are performed as a subscriber requests their results, in the
+     * common fork-join pool, instead of all at once in the calling thread.
+     *
+     * @param wDim          the dimension of world
+     * @param numSteps      num of steps to perform
+     * @param fileSteps     file name with sequence of steps to perform, or "-" to
+     *                      let the agent plan up to numSteps steps
+     * @param fileEnvelopes file name with envelopes positions
+     * @return the publisher of the results of the steps
+     **/
+    public static StepPublisher publishStepsSequence (int wDim, int numSteps, String fileSteps, String fileEnvelopes) {
+        return new StepPublisher(newFinder(wDim, numSteps, fileSteps, fileEnvelopes));
+    }
+
+    /**
+     * Make an EnvelopeFinder agent with its environment, ready to perform the
+     * steps of fileSteps (or to plan them, if fileSteps is "-")
+     **/
+    static EnvelopeFinder newFinder (int wDim, int numSteps, String fileSteps, String fileEnvelopes) {
         // Make instances of EnvelopeFinder agent and environment object classes
         EnvelopeFinder FinderEAgent = new EnvelopeFinder(wDim);
         EnvelopeWorldEnv EnvAgent = new EnvelopeWorldEnv(wDim, fileEnvelopes);
 
-
         // Save environment object into FinderEAgent
         FinderEAgent.setEnvironment(EnvAgent);
 
-        // Load list of steps into the Finder Agent
-        FinderEAgent.loadListOfSteps(numSteps, fileSteps);
-
-        // Execute sequence of steps with the Agent
-        for(int i = 0; i < numSteps; i++){
-            FinderEAgent.runNextStep();
+        if (fileSteps.equals(PLANNER_STEPS)) {
+            FinderEAgent.setPlannerMode(numSteps);
         }
-
+        else {
+            // Load list of steps into the Finder Agent
+            FinderEAgent.loadListOfSteps(numSteps, fileSteps);
+        }
+        return FinderEAgent;
     }
 
     /**
-     * This function loads 4 arguments from the command line:
+     * This function loads 4 or 5 arguments from the command line:
      *
      * @param args arg[0] = dimension of the word;
      *             arg[1] = num of steps to perform;
-     *             arg[2] = file name with sequence of steps to perform;
-     *             arg[3] = file name containing a list of envelopes positions
+     *             arg[2] = file name with sequence of steps to perform ("-" to plan them);
+     *             arg[3] = file name containing a list of envelopes positions;
+     *             arg[4] = (optional) --stats or --stats=FILE
      **/
     public static void main (String[] args) throws ParseFormatException, IOException, ContradictionException, TimeoutException {
 
@@ -64,8 +140,12 @@ public class EnvelopeWorld {
         int numSteps = Integer.parseInt(args[1]);
         String fileSteps = args[2];
         String fileEnvelopes = args[3];
+        String fileStats = null;
+        if (args.length == 5) {
+            fileStats = args[4].equals(STATS_OPTION) ? "" : args[4].substring(STATS_OPTION.length() + 1);
+        }
 
-        runStepsSequence(wDim, numSteps, fileSteps, fileEnvelopes);
+        runStepsSequence(wDim, numSteps, fileSteps, fileEnvelopes, fileStats);
     }
 
     /**
@@ -75,9 +155,13 @@ public class EnvelopeWorld {
      * @throws ParseFormatException
      */
     private static void checkArguments (String[] args) throws ParseFormatException {
-        // There must be 4 arguments
-        if (args.length != 4) {
-            throw new ParseFormatException(" Arguments: dim(Integer > 0) numsteps(Integer > 0) stepsfilename envelopesfilename");
+        // There must be 4 arguments, and optionally the statistics option
+        if (args.length != 4 && args.length != 5) {
+            throw new ParseFormatException(" Arguments: dim(Integer > 0) numsteps(Integer > 0) stepsfilename envelopesfilename [--stats[=FILE]]");
+        }
+        if (args.length == 5 && !args[4].equals(STATS_OPTION)
+                && !(args[4].startsWith(STATS_OPTION + "=") && args[4].length() > STATS_OPTION.length() + 1)) {
+            throw new ParseFormatException(" Arguments: dim(Integer > 0) numsteps(Integer > 0) stepsfilename envelopesfilename [--stats[=FILE]]");
         }
         // Arguments 0 and 1 must be integers
         if (Integer.parseInt(args[0]) <= 0 || Integer.parseInt(args[1]) <= 0) {
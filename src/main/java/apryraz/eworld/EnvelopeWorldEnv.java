@@ -20,6 +20,10 @@ public class EnvelopeWorldEnv {
      * Locations of the envelopes
      */
     HashSet<Position> envelopesPositions;
+    /**
+     * Trace where all the messages and their answers are recorded (null if none)
+     */
+    MessageTraceWriter trace;
 
 
     /**
@@ -35,6 +39,28 @@ public class EnvelopeWorldEnv {
         loadEnvelopeLocations(envelopeFile);
     }
 
+    /**
+     * Class constructor for environments that don't read the envelope
+     * locations from a file
+     *
+     * @param dim dimension of the world
+     **/
+    EnvelopeWorldEnv(int dim) {
+
+        WorldDim = dim;
+        envelopesPositions = new HashSet<>();
+    }
+
+    /**
+     * Record in a trace all the messages received from now on, together
+     * with the answers given to them
+     *
+     * @param traceWriter the trace, or null to stop recording
+     **/
+    public void setTrace(MessageTraceWriter traceWriter) {
+        trace = traceWriter;
+    }
+
     /**
      * Load the set of envelopes locations
      *
@@ -62,8 +88,9 @@ public class EnvelopeWorldEnv {
 
         // Add the positions into the set
         for(int i = 0; i < envelopesList.length; i++){
-            int xPos = Integer.parseInt(String.valueOf(envelopesList[i].charAt(0)));
-            int yPos = Integer.parseInt(String.valueOf(envelopesList[i].charAt(2)));
+            String[] coords = envelopesList[i].split(",");
+            int xPos = Integer.parseInt(coords[0]);
+            int yPos = Integer.parseInt(coords[1]);
             envelopesPositions.add(new Position(xPos, yPos));
         }
 
@@ -95,6 +122,14 @@ public class EnvelopeWorldEnv {
             String sensorsOutput = getSensorsOutput(currentPos);
             ans = new AMessage(sensorsOutput, Integer.toString(currentPos.getX()), Integer.toString(currentPos.getY()), "");
         }
+
+        if (trace != null) {
+            try {
+                trace.record(msg, ans);
+            } catch (IOException ex) {
+                Logger.getLogger(EnvelopeWorldEnv.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
         return ans;
     }
 
@@ -112,37 +147,30 @@ public class EnvelopeWorldEnv {
      *         "" -> The sensors haven't detected any envelopes
      */
     public String getSensorsOutput(Position currentPos){
-        String output = "";
-
-        // Sensor 1 scope
-        Position right = new Position(currentPos.getX() + 1, currentPos.getY());
-        Position left = new Position(currentPos.getX() - 1, currentPos.getY());
-        Position down = new Position(currentPos.getX(), currentPos.getY() - 1);
-        Position up = new Position(currentPos.getX(), currentPos.getY() + 1);
-
-        // Check if in the scope of sensor 1 there's an envelope
-        if(envelopesPositions.contains(right) || envelopesPositions.contains(left) || envelopesPositions.contains(down) || envelopesPositions.contains(up)){
-            output += "1";
-        }
-
-        // Sensor 2 scope
-        Position leftDown = new Position(currentPos.getX() - 1, currentPos.getY() - 1);
-        Position rightDown = new Position(currentPos.getX() + 1, currentPos.getY() - 1);
-        Position leftUp = new Position(currentPos.getX() - 1, currentPos.getY() + 1);
-        Position rightUp = new Position(currentPos.getX() + 1, currentPos.getY() + 1);
-
-        // Check if in the scope of sensor 2 there's an envelope
-        if(envelopesPositions.contains(leftDown) || envelopesPositions.contains(rightDown) || envelopesPositions.contains(leftUp) || envelopesPositions.contains(rightUp)){
-            output += "2";
-        }
+        return getSensorReading(currentPos).toString();
+    }
 
-        // Sensor 3 scope (is the current position of the agent)
-        // Check if in the scope of sensor 3 there's an envelope
-        if(envelopesPositions.contains(currentPos)){
-            output += "3";
+    /**
+     * This function returns the output of the sensors at a position
+     *
+     * @param currentPos Position x,y of the agent
+     * @return the reading, with the sensors that have an envelope in their scope
+     */
+    public SensorReading getSensorReading(Position currentPos){
+        int mask = 0;
+        // Only used to look up the set of envelopes, it is never stored
+        Position probe = new Position(0, 0);
+        for (int sensor = 1; sensor <= SensorReading.NUM_SENSORS; sensor++) {
+            for (int k = 0; k < SensorReading.scopeSize(sensor); k++) {
+                probe.x = currentPos.x + SensorReading.scopeDx(sensor, k);
+                probe.y = currentPos.y + SensorReading.scopeDy(sensor, k);
+                if (envelopesPositions.contains(probe)) {
+                    mask |= 1 << (sensor - 1);
+                    break;
+                }
+            }
         }
-
-        return output;
+        return SensorReading.of(mask);
     }
 
 
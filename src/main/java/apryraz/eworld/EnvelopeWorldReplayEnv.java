@@ -0,0 +1,100 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *  Environment that answers the messages of the agent with the answers stored in
+ *  a trace written by MessageTraceWriter, instead of computing them. It does not
+ *  need the envelopes file, and every message must be the same one, in the same
+ *  order, that was sent when the trace was recorded.
+ **/
+public class EnvelopeWorldReplayEnv extends EnvelopeWorldEnv {
+
+    /**
+     * Channel of the trace file, and buffer with the records read in advance
+     */
+    FileChannel channel;
+    ByteBuffer buffer;
+
+    /**
+     * Class constructor
+     *
+     * @param traceFile name of the trace file
+     * @throws IOException
+     */
+    public EnvelopeWorldReplayEnv(String traceFile) throws IOException {
+        super(0);
+        channel = FileChannel.open(Paths.get(traceFile), StandardOpenOption.READ);
+        buffer = ByteBuffer.allocateDirect(MessageTraceWriter.RECORD_SIZE * 4096);
+        buffer.limit(0);
+        fill(MessageTraceWriter.HEADER_SIZE);
+        if (buffer.getInt() != MessageTraceWriter.MAGIC) {
+            throw new IOException(traceFile + " is not a trace file");
+        }
+        WorldDim = buffer.getInt();
+    }
+
+    /**
+     * Answer a message with the next record of the trace
+     *
+     * @param msg message sent by the Agent
+     * @return the answer stored in the trace
+     * @throws IllegalStateException if the trace is exhausted or the message is
+     *         not the one that was recorded
+     **/
+    @Override
+    public AMessage acceptMessage(AMessage msg) {
+        try {
+            fill(MessageTraceWriter.RECORD_SIZE);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Trace could not be read", ex);
+        }
+        byte requestType = buffer.get();
+        int x = buffer.getInt();
+        int y = buffer.getInt();
+        if (requestType != MessageTraceWriter.encodeType(msg.getComp(0), false)
+                || x != MessageTraceWriter.parseCoord(msg.getComp(1))
+                || y != MessageTraceWriter.parseCoord(msg.getComp(2))) {
+            throw new IllegalStateException("Message " + msg.getComp(0) + " " + msg.getComp(1) + " "
+                    + msg.getComp(2) + " does not match the trace");
+        }
+
+        byte answerType = buffer.get();
+        String ansX = Integer.toString(buffer.getInt());
+        String ansY = Integer.toString(buffer.getInt());
+        byte mask = buffer.get();
+        switch (answerType) {
+            case MessageTraceWriter.MOVEDTO:
+                return new AMessage("movedto", ansX, ansY, "");
+            case MessageTraceWriter.NOTMOVEDTO:
+                return new AMessage("notmovedto", ansX, ansY, "");
+            case MessageTraceWriter.SENSORS:
+                return new AMessage(SensorReading.of(mask).toString(), ansX, ansY, "");
+            default:
+                return new AMessage("voidmsg", "", "", "");
+        }
+    }
+
+    /**
+     * Make sure that the buffer holds at least size bytes
+     *
+     * @param size number of bytes needed
+     * @throws IOException if the end of the trace is reached
+     */
+    void fill(int size) throws IOException {
+        if (buffer.remaining() >= size) {
+            return;
+        }
+        buffer.compact();
+        while (buffer.position() < size) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("End of the trace reached");
+            }
+        }
+        buffer.flip();
+    }
+}
@@ -0,0 +1,123 @@
+package apryraz.eworld;
+
+import java.util.BitSet;
+
+/**
+ *  A square region of the Envelope World, with its own slice of the state of
+ *  knowledge. Used by the TiledEnvelopeFinder agent.
+ *
+ *  Without a known number of envelopes, a sensor that detects something only
+ *  says that some position of its scope has an envelope, and that can never
+ *  rule out another position: the positions with no envelope that follow from
+ *  the readings are exactly the ones in the scopes of the sensors that detect
+ *  nothing. So a tile doesn't need a solver, it just keeps the set of its
+ *  positions discarded by the readings. The checks that involve positions of
+ *  several tiles are done by TiledEnvelopeFinder.
+ **/
+public class EnvelopeWorldTile {
+
+/**
+*  Global coordinates of the position before the first row and column of the tile
+**/
+    int originX, originY;
+/**
+*  Dimension of the tile, and dimension of the whole world
+**/
+    int TileDim, WorldDim;
+/**
+*  Slice of the state of knowledge that corresponds to this tile: lineal
+*  indexes (starting at 0) of the positions inside the world with no envelope
+**/
+    BitSet known;
+
+    /**
+     * Class constructor. Creates the tile, including the positions that were
+     * already known to be empty (for a tile that is loaded again after being
+     * evicted).
+     *
+     * @param oX global x coordinate before the first row of the tile
+     * @param oY global y coordinate before the first column of the tile
+     * @param TDim dimension of the tile
+     * @param WDim dimension of the world
+     * @param knownPositions positions of the tile without envelope (lineal index
+     *              inside the tile), or null if nothing is known yet
+     */
+    public EnvelopeWorldTile(int oX, int oY, int TDim, int WDim, BitSet knownPositions) {
+        originX = oX;
+        originY = oY;
+        TileDim = TDim;
+        WorldDim = WDim;
+        known = knownPositions != null ? knownPositions : new BitSet(TileDim * TileDim);
+    }
+
+    /**
+     * Check whether the global position pos belongs to this tile
+     *
+     * @param pos global x,y coordinate
+     * @return true if pos is inside the tile
+     */
+    public boolean contains(Position pos) {
+        return pos.getX() > originX && pos.getX() <= originX + TileDim
+            && pos.getY() > originY && pos.getY() <= originY + TileDim;
+    }
+
+    /**
+     * Add the evidence that there is no envelope at the global position pos
+     *
+     * @param pos global x,y coordinate, that must belong to the tile and to the world
+     * @return true if the position was not yet discarded
+     */
+    public boolean addNoEnvelope(Position pos) {
+        int lineal = localToLineal(pos.getX() - originX, pos.getY() - originY) - 1;
+        if (known.get(lineal)) {
+            return false;
+        }
+        known.set(lineal);
+        return true;
+    }
+
+    /**
+     * Get the state of knowledge about a global position of the tile
+     *
+     * @param pos global x,y coordinate, that must belong to the tile
+     * @return "X" if there can't be an envelope at pos, "?" otherwise
+     */
+    public String get(Position pos) {
+        int i = pos.getX() - originX;
+        int j = pos.getY() - originY;
+        // Positions that fall outside the world can't contain any envelope
+        return (!insideWorld(i, j) || known.get(localToLineal(i, j) - 1)) ? "X" : "?";
+    }
+
+    /**
+     * Get the positions of the tile (inside the world) known to be empty, to
+     * keep them while the tile is not loaded
+     *
+     * @return set of lineal indexes (inside the tile) of the discarded positions
+     */
+    public BitSet getKnownPositions() {
+        return (BitSet) known.clone();
+    }
+
+    /**
+     * Check whether the position (i,j) of the tile is inside the world
+     *
+     * @param i row inside the tile, in the range [1,TileDim]
+     * @param j column inside the tile, in the range [1,TileDim]
+     * @return true if the position is inside the world
+     */
+    public boolean insideWorld(int i, int j) {
+        return originX + i <= WorldDim && originY + j <= WorldDim;
+    }
+
+    /**
+     * Get the lineal index (starting at 1) of the position (i,j) of the tile
+     *
+     * @param i row inside the tile, in the range [1,TileDim]
+     * @param j column inside the tile, in the range [1,TileDim]
+     * @return the lineal index
+     */
+    public int localToLineal(int i, int j) {
+        return ((i - 1) * TileDim) + j;
+    }
+}
@@ -0,0 +1,82 @@
+package apryraz.eworld;
+
+import java.util.ArrayList;
+
+/**
+ *  Member of a team of agents that search the same Envelope World. A scout
+ *  follows its own list of steps, moving and sensing, and publishes its
+ *  readings in the shared knowledge base; it does no inference by itself.
+ *  Different scouts can run their steps at the same time.
+ **/
+public class FinderScout {
+
+    /**
+     * Identifier of the scout inside its team
+     */
+    int id;
+    /**
+     * The list of steps to perform, index of the next one and total number of them
+     */
+    ArrayList<Position> listOfSteps;
+    int idNextStep, numMovements;
+    /**
+     * Scout position in the world
+     */
+    int agentX, agentY;
+    /**
+     * The object that represents the interface to the Envelope World
+     */
+    EnvelopeWorldEnv EnvAgent;
+    /**
+     * Where the readings are published
+     */
+    SharedKnowledgeBase knowledge;
+
+    /**
+     * Class constructor
+     *
+     * @param scoutId identifier of the scout inside its team
+     * @param steps list of steps to perform
+     * @param environment the environment, shared with the other scouts
+     * @param kb the knowledge base shared with the other scouts
+     */
+    public FinderScout(int scoutId, ArrayList<Position> steps, EnvelopeWorldEnv environment, SharedKnowledgeBase kb) {
+        id = scoutId;
+        listOfSteps = steps;
+        numMovements = steps.size();
+        idNextStep = 0;
+        EnvAgent = environment;
+        knowledge = kb;
+    }
+
+    /**
+     * @return true if there are steps left to perform
+     */
+    public boolean hasNextStep() {
+        return idNextStep < numMovements;
+    }
+
+    /**
+     * Move to the next position of the list and, if the movement succeeds,
+     * sense there and publish the reading
+     */
+    public void runNextStep() {
+        Position nextPosition = listOfSteps.get(idNextStep);
+        idNextStep = idNextStep + 1;
+
+        AMessage ans = EnvAgent.acceptMessage(new AMessage("moveto", Integer.toString(nextPosition.x),
+                Integer.toString(nextPosition.y), ""));
+        if (!ans.getComp(0).equals("movedto")) {
+            return;
+        }
+        agentX = nextPosition.x;
+        agentY = nextPosition.y;
+        System.out.println("SCOUT " + id + " => moved to : (" + agentX + "," + agentY + ")");
+
+        ans = EnvAgent.acceptMessage(new AMessage("detectsat", Integer.toString(agentX),
+                Integer.toString(agentY), ""));
+        System.out.println("SCOUT " + id + " => detecting at : (" + agentX + "," + agentY + ") Sensors output: "
+                + ans.getComp(0));
+        knowledge.publishEvidence(ans);
+    }
+}
@@ -0,0 +1,24 @@
+package apryraz.eworld;
+
+/**
+ * Encodings that the EnvelopeFinder agent can use to build its formula
+ */
+public enum GammaEncoding {
+    /**
+     * Past and future envelope variables plus one variable for each sensor,
+     * with all the implications between sensors and envelope positions
+     * generated for every position of the world
+     **/
+    FULL,
+    /**
+     * A single envelope variable per position. Every sensor reading is
+     * compiled directly into unit clauses over the positions it discards
+     **/
+    COMPACT,
+    /**
+     * The same variables of the full encoding, but the base formula only
+     * contains the "envelope somewhere" clauses. The sensor clauses of a
+     * position are generated the first time a reading is obtained there
+     **/
+    LAZY
+}
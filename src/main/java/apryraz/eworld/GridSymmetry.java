@@ -0,0 +1,88 @@
+package apryraz.eworld;
+
+import java.util.BitSet;
+
+/**
+ *  The eight symmetries of the square grid of a world (rotations and
+ *  reflections). The rules of the Envelope World don't change under any of
+ *  them: the scope of every sensor is mapped to the scope of the same sensor.
+ *
+ *  A symmetry is an integer in the range [0,7]: bit 2 says whether x and y
+ *  are swapped, and then bit 0 whether x is reflected and bit 1 whether y is
+ *  reflected. The symmetry 0 is the identity.
+ **/
+public class GridSymmetry {
+
+    /**
+     * Number of symmetries, and set (as a bit mask) with all of them
+     */
+    static final int NUM_SYMMETRIES = 8;
+    static final int ALL = (1 << NUM_SYMMETRIES) - 1;
+    /**
+     * Bits of a symmetry
+     */
+    static final int FLIP_X = 1, FLIP_Y = 2, SWAP = 4;
+
+    /**
+     * Get the x coordinate of the image of (x,y)
+     *
+     * @param s the symmetry
+     * @param x x coordinate
+     * @param y y coordinate
+     * @param WDim dimension of the world
+     * @return x coordinate of the image
+     */
+    static int imageX(int s, int x, int y, int WDim) {
+        int a = (s & SWAP) != 0 ? y : x;
+        return (s & FLIP_X) != 0 ? WDim + 1 - a : a;
+    }
+
+    /**
+     * Get the y coordinate of the image of (x,y)
+     *
+     * @param s the symmetry
+     * @param x x coordinate
+     * @param y y coordinate
+     * @param WDim dimension of the world
+     * @return y coordinate of the image
+     */
+    static int imageY(int s, int x, int y, int WDim) {
+        int b = (s & SWAP) != 0 ? x : y;
+        return (s & FLIP_Y) != 0 ? WDim + 1 - b : b;
+    }
+
+    /**
+     * Get the inverse of a symmetry
+     *
+     * @param s the symmetry
+     * @return the symmetry that undoes s
+     */
+    static int inverse(int s) {
+        if ((s & SWAP) == 0) {
+            return s;
+        }
+        // Undoing the reflections before the swap means reflecting the other axis after it
+        return SWAP | ((s & FLIP_X) != 0 ? FLIP_Y : 0) | ((s & FLIP_Y) != 0 ? FLIP_X : 0);
+    }
+
+    /**
+     * Get the image of a set of positions
+     *
+     * @param s the symmetry
+     * @param positions lineal indexes (starting at 0) of the positions
+     * @param WDim dimension of the world
+     * @return a new set with the lineal indexes of the images
+     */
+    static BitSet image(int s, BitSet positions, int WDim) {
+        if (s == 0) {
+            return (BitSet) positions.clone();
+        }
+        BitSet image = new BitSet(WDim * WDim);
+        for (int lineal = positions.nextSetBit(0); lineal >= 0; lineal = positions.nextSetBit(lineal + 1)) {
+            int x = lineal / WDim + 1;
+            int y = lineal % WDim + 1;
+            image.set((imageX(s, x, y, WDim) - 1) * WDim + imageY(s, x, y, WDim) - 1);
+        }
+        return image;
+    }
+}
@@ -0,0 +1,296 @@
+package apryraz.eworld;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ *  Cache of inference results that can be shared by many EnvelopeFinder agents
+ *  (also from different threads) that replay step sequences with common
+ *  prefixes.
+ *
+ *  There is one trie for every configuration (world dimension and known
+ *  number of envelopes). Each edge is a step: the position where the agent
+ *  sensed and the reading it got. Each node keeps the positions discarded after
+ *  the sequence of steps that leads to it.
+ *
+ *  As the rules of the world don't change under its eight symmetries (see
+ *  GridSymmetry), a sequence of steps is stored in canonical form: the
+ *  smallest image of the sequence under any symmetry, comparing the keys of
+ *  the steps one by one. A Cursor follows the canonical sequence step by step,
+ *  keeping the symmetries whose image is the smallest so far (only those can
+ *  give the smallest image of a longer sequence). Results are stored in the
+ *  coordinates of the canonical sequence and mapped back with the inverse
+ *  symmetry, so symmetric copies of a scenario share their results.
+ *
+ *  The memory used by the nodes is
+ *  bounded: when the estimate goes over the bound, the least recently used
+ *  nodes are evicted. A node is always touched after its descendants, so the
+ *  least recently used node is always a leaf, and eviction never breaks a
+ *  path that is still in use.
+ **/
+public class InferenceCache {
+
+    /**
+     * Estimated memory used by a node, besides its set of positions
+     */
+    static final int NODE_OVERHEAD = 128;
+
+    /**
+     * A node of a trie: the state after a sequence of steps
+     */
+    public static class Node {
+        /**
+         * Parent node (null for a root), and step that leads from the parent
+         */
+        Node parent;
+        long step;
+        /**
+         * Lineal indexes (starting at 0) of the discarded positions, in the
+         * coordinates of the canonical sequence
+         */
+        BitSet discarded;
+        /**
+         * Nodes of the sequences that continue this one, indexed by their last step
+         */
+        HashMap<Long, Node> children = new HashMap<>();
+
+        Node(Node parentNode, long stepKey, BitSet discardedPositions) {
+            parent = parentNode;
+            step = stepKey;
+            discarded = discardedPositions;
+        }
+
+        /**
+         * @return the positions discarded after the sequence of steps of the node,
+         *         in the coordinates of the canonical sequence
+         */
+        public BitSet getDiscarded() {
+            return discarded;
+        }
+    }
+
+    /**
+     * Position of an agent in a trie: the node of the steps performed so far,
+     * and the symmetries that map them to the canonical sequence
+     */
+    public static class Cursor {
+        /**
+         * Dimension of the world
+         */
+        int WorldDim;
+        /**
+         * Node of the steps performed so far, and set of symmetries (bit mask)
+         */
+        Node node;
+        int symmetries;
+        /**
+         * Canonical key and symmetries of the step being looked up
+         */
+        long nextStep;
+        int nextSymmetries;
+
+        Cursor(int WDim, Node root, int initialSymmetries) {
+            WorldDim = WDim;
+            node = root;
+            symmetries = initialSymmetries;
+        }
+
+        /**
+         * @return the symmetry used to map the steps to the canonical sequence
+         */
+        int symmetry() {
+            return Integer.numberOfTrailingZeros(symmetries);
+        }
+    }
+
+    /**
+     * Roots of the tries, indexed by configuration
+     */
+    HashMap<String, Node> roots = new HashMap<>();
+    /**
+     * Nodes that can be evicted, in least recently used order
+     */
+    LinkedHashMap<Node, Node> lru = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Memory bound, and estimate of the memory used by the nodes
+     */
+    long maxBytes, usedBytes;
+    /**
+     * Number of lookups that found a node, and that did not
+     */
+    long hits, misses;
+    /**
+     * Whether symmetric sequences of steps share their results
+     */
+    boolean useSymmetries;
+
+    /**
+     * Class constructor
+     *
+     * @param maxMemoryBytes bound of the memory used by the cached results
+     */
+    public InferenceCache(long maxMemoryBytes) {
+        this(maxMemoryBytes, true);
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param maxMemoryBytes bound of the memory used by the cached results
+     * @param symmetries whether symmetric sequences of steps share their results
+     */
+    public InferenceCache(long maxMemoryBytes, boolean symmetries) {
+        maxBytes = maxMemoryBytes;
+        useSymmetries = symmetries;
+    }
+
+    /**
+     * Get a cursor at the root of the trie of a configuration (the state
+     * before any step)
+     *
+     * @param WDim dimension of the world
+     * @param envelopeCount known number of envelopes (0 if unknown)
+     * @param exact whether envelopeCount is exact or an upper bound
+     * @return a new cursor
+     */
+    public synchronized Cursor start(int WDim, int envelopeCount, boolean exact) {
+        String config = WDim + ":" + envelopeCount + ":" + (envelopeCount > 0 && exact);
+        Node root = roots.computeIfAbsent(config, k -> new Node(null, 0, new BitSet()));
+        return new Cursor(WDim, root, useSymmetries ? GridSymmetry.ALL : 1);
+    }
+
+    /**
+     * Look for the result of the steps of a cursor followed by one more step.
+     * On a hit the cursor moves to the longer sequence; on a miss it stays, and
+     * the result must be stored with insert().
+     *
+     * @param cursor the cursor
+     * @param x x coordinate where the agent sensed
+     * @param y y coordinate where the agent sensed
+     * @param reading the output of the sensors
+     * @return the positions discarded after the step (lineal indexes starting
+     *         at 0, in the coordinates of the agent), or null if not cached
+     */
+    public synchronized BitSet lookup(Cursor cursor, int x, int y, SensorReading reading) {
+        // Smallest image of the step among the symmetries kept by the cursor
+        int W = cursor.WorldDim;
+        cursor.nextStep = Long.MAX_VALUE;
+        cursor.nextSymmetries = 0;
+        for (int s = 0; s < GridSymmetry.NUM_SYMMETRIES; s++) {
+            if ((cursor.symmetries & (1 << s)) != 0) {
+                long key = stepKey(GridSymmetry.imageX(s, x, y, W), GridSymmetry.imageY(s, x, y, W), reading);
+                if (key < cursor.nextStep) {
+                    cursor.nextStep = key;
+                    cursor.nextSymmetries = 0;
+                }
+                if (key == cursor.nextStep) {
+                    cursor.nextSymmetries |= 1 << s;
+                }
+            }
+        }
+
+        Node child = cursor.node.children.get(cursor.nextStep);
+        if (child == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        touch(child);
+        cursor.node = child;
+        cursor.symmetries = cursor.nextSymmetries;
+        return GridSymmetry.image(GridSymmetry.inverse(cursor.symmetry()), child.discarded, W);
+    }
+
+    /**
+     * Store the result of the step that was not found by the last lookup with
+     * the same cursor, and move the cursor to it
+     *
+     * @param cursor the cursor
+     * @param discarded positions discarded after the step (lineal indexes
+     *                  starting at 0, in the coordinates of the agent)
+     */
+    public synchronized void insert(Cursor cursor, BitSet discarded) {
+        Node parent = cursor.node;
+        cursor.symmetries = cursor.nextSymmetries;
+        BitSet canonical = GridSymmetry.image(cursor.symmetry(), discarded, cursor.WorldDim);
+        if (parent.parent != null && parent.parent.children.get(parent.step) != parent) {
+            // The parent has been evicted: go on without caching
+            cursor.node = new Node(parent, cursor.nextStep, canonical);
+            return;
+        }
+        Node child = parent.children.get(cursor.nextStep);
+        if (child == null) {
+            child = new Node(parent, cursor.nextStep, canonical);
+            parent.children.put(cursor.nextStep, child);
+            usedBytes += nodeBytes(child);
+        }
+        touch(child);
+        evict();
+        cursor.node = child;
+    }
+
+    /**
+     * Mark a node and all its ancestors as recently used, the node first
+     */
+    void touch(Node node) {
+        for (Node n = node; n.parent != null; n = n.parent) {
+            lru.put(n, n);
+        }
+    }
+
+    /**
+     * Evict least recently used nodes (always leaves) until the memory used is
+     * within the bound
+     */
+    void evict() {
+        Iterator<Node> eldest = lru.keySet().iterator();
+        while (usedBytes > maxBytes && eldest.hasNext()) {
+            Node node = eldest.next();
+            eldest.remove();
+            node.parent.children.remove(node.step);
+            usedBytes -= nodeBytes(node);
+        }
+    }
+
+    /**
+     * @return the estimated memory used by the cached results, in bytes
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return the number of lookups that found the sequence of steps
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that did not find the sequence of steps
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the key of a step
+     *
+     * @param x x coordinate where the agent sensed
+     * @param y y coordinate where the agent sensed
+     * @param reading the output of the sensors
+     * @return the key
+     */
+    public static long stepKey(int x, int y, SensorReading reading) {
+        return ((long) x << 32) | ((long) y << SensorReading.NUM_SENSORS) | reading.getMask();
+    }
+
+    /**
+     * Estimate the memory used by a node
+     */
+    static long nodeBytes(Node node) {
+        return NODE_OVERHEAD + node.discarded.size() / 8;
+    }
+}
@@ -0,0 +1,66 @@
+package apryraz.eworld;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ *  Storage of the positions of a world known to have no envelope. EFState is
+ *  the in-memory store used by EnvelopeFinder; MappedKnowledgeStore keeps the
+ *  positions in a memory-mapped file, for worlds too large for the heap and
+ *  for knowledge that must survive a restart.
+ *
+ *  Only TiledEnvelopeFinder can keep its knowledge out of the heap with a
+ *  MappedKnowledgeStore: the formula of EnvelopeFinder has variables for all
+ *  the positions of the world anyway, so its memory grows with WorldDim^2
+ *  whatever the store.
+ *
+ *  Coordinates are in the range [1,dimension]. Positions are only ever added:
+ *  a position discarded stays discarded.
+ **/
+public interface KnowledgeStore extends Closeable {
+
+    /**
+     * @return the dimension of the world
+     */
+    int getDimension();
+
+    /**
+     * Check whether a position is known to have no envelope
+     *
+     * @param x x coordinate
+     * @param y y coordinate
+     * @return true if it has been discarded
+     */
+    boolean isDiscarded(int x, int y);
+
+    /**
+     * Record that a position has no envelope
+     *
+     * @param x x coordinate
+     * @param y y coordinate
+     */
+    void markDiscarded(int x, int y);
+
+    /**
+     * @return the number of positions discarded
+     */
+    long countDiscarded();
+
+    /**
+     * Write the changes to the underlying storage, if any
+     *
+     * @throws IOException
+     */
+    default void flush() throws IOException {
+    }
+
+    /**
+     * Flush the changes and release the resources of the store
+     *
+     * @throws IOException
+     */
+    @Override
+    default void close() throws IOException {
+        flush();
+    }
+}
@@ -0,0 +1,116 @@
+package apryraz.eworld;
+
+/**
+ *  Histogram of latencies (in nanoseconds) with logarithmic buckets: every
+ *  power of two is split into 16 linear sub-buckets, so any value is kept with
+ *  a relative error below 1/16. All the memory is allocated by the constructor,
+ *  and recording a value does not allocate anything.
+ **/
+public class LatencyHistogram {
+
+    /**
+     * Number of sub-buckets of every power of two (as a power of two)
+     */
+    static final int SUB_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * Number of values recorded in every bucket
+     */
+    long[] counts = new long[64 * SUB_BUCKETS];
+    /**
+     * Number of values, sum and maximum of all of them
+     */
+    long count, total, max;
+
+    /**
+     * Record a value
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[bucketOf(value)]++;
+        count++;
+        total += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * Get the value below which there is a given fraction of the recorded values
+     *
+     * @param fraction the fraction, between 0 and 1 (0.99 for the 99th percentile)
+     * @return the upper bound of the bucket where the percentile falls (never
+     *         above the maximum recorded value), or 0 if nothing was recorded
+     */
+    public long percentile(double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return Math.min(max, upperBound(bucket));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the sum of the recorded values
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the maximum recorded value
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Get the bucket of a value. Values below SUB_BUCKETS have their own bucket;
+     * above it, the bucket is given by the position of the highest bit and the
+     * SUB_BITS bits that follow it.
+     *
+     * @param value a non negative value
+     * @return the index of its bucket
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Get the largest value that falls in a bucket
+     *
+     * @param bucket index of the bucket
+     * @return the largest value of the bucket
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long lower = (1L << exponent) + (sub << (exponent - SUB_BITS));
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+}
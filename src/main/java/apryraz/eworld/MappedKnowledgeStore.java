@@ -0,0 +1,208 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *  Knowledge store kept in a memory-mapped file, for worlds whose state of
+ *  knowledge doesn't fit in the heap. TiledEnvelopeFinder keeps there the
+ *  knowledge of the tiles it evicts. The file persists: opening it again
+ *  with the same dimension gives back the positions discarded before.
+ *
+ *  The file starts with a header (magic number, world dimension and number of
+ *  positions discarded), followed by one bit per position (1 if discarded).
+ *  The world is split into blocks of BLOCK_DIM x BLOCK_DIM positions, stored
+ *  one after the other, row of blocks by row of blocks, and every block has
+ *  one 64-bit word per row. So the positions around the agent are close in the
+ *  file. The file is mapped in regions of regionBytes bytes, each one the
+ *  first time one of its positions is used, so only the regions that the agent
+ *  touches are ever paged in.
+ **/
+public class MappedKnowledgeStore implements KnowledgeStore {
+
+    /**
+     * Magic number at the beginning of the file ("EFKS")
+     */
+    static final int MAGIC = 0x45464B53;
+    /**
+     * Size in bytes of the file header
+     */
+    static final int HEADER_SIZE = 16;
+    /**
+     * Dimension of the blocks, and size of a block in bytes
+     */
+    static final int BLOCK_DIM = 64, BLOCK_BYTES = BLOCK_DIM * 8;
+    /**
+     * Default size of the mapped regions
+     */
+    static final int DEFAULT_REGION_BYTES = 1 << 24;
+
+    /**
+     * Dimension of the world, and number of blocks per side
+     */
+    int WorldDim;
+    long blocksPerSide;
+    /**
+     * Number of positions discarded
+     */
+    long discardedCount;
+    /**
+     * The file, its mapped header, and its mapped regions of data (null until
+     * they are used)
+     */
+    FileChannel channel;
+    MappedByteBuffer header;
+    MappedByteBuffer[] regions;
+    /**
+     * Size of the regions (a multiple of BLOCK_BYTES), and size of the data
+     */
+    int regionBytes;
+    long dataBytes;
+
+    /**
+     * Open a store, creating the file if it doesn't exist
+     *
+     * @param fileName name of the file
+     * @param WDim dimension of the world
+     * @throws IOException if the file exists but is not a store of a world of
+     *                     dimension WDim
+     */
+    public MappedKnowledgeStore(String fileName, int WDim) throws IOException {
+        this(fileName, WDim, DEFAULT_REGION_BYTES);
+    }
+
+    /**
+     * Open a store, creating the file if it doesn't exist
+     *
+     * @param fileName name of the file
+     * @param WDim dimension of the world
+     * @param maxRegionBytes size of the mapped regions (rounded to whole blocks)
+     * @throws IOException if the file exists but is not a store of a world of
+     *                     dimension WDim
+     */
+    public MappedKnowledgeStore(String fileName, int WDim, int maxRegionBytes) throws IOException {
+        WorldDim = WDim;
+        blocksPerSide = (WorldDim + BLOCK_DIM - 1) / BLOCK_DIM;
+        dataBytes = blocksPerSide * blocksPerSide * BLOCK_BYTES;
+        regionBytes = Math.max(1, maxRegionBytes / BLOCK_BYTES) * BLOCK_BYTES;
+        regions = new MappedByteBuffer[(int) ((dataBytes + regionBytes - 1) / regionBytes)];
+
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean created = channel.size() == 0;
+        if (created) {
+            // Extend the file without writing the data (it reads as zeros)
+            channel.write(ByteBuffer.allocate(1), HEADER_SIZE + dataBytes - 1);
+        } else if (channel.size() < HEADER_SIZE + dataBytes) {
+            channel.close();
+            throw new IOException("Not a knowledge store of a world of dimension " + WorldDim + ": " + fileName);
+        }
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        if (created) {
+            header.putInt(0, MAGIC);
+            header.putInt(4, WorldDim);
+            header.putLong(8, 0);
+        } else if (header.getInt(0) != MAGIC || header.getInt(4) != WorldDim) {
+            channel.close();
+            throw new IOException("Not a knowledge store of a world of dimension " + WorldDim + ": " + fileName);
+        }
+        discardedCount = header.getLong(8);
+    }
+
+    @Override
+    public int getDimension() {
+        return WorldDim;
+    }
+
+    @Override
+    public boolean isDiscarded(int x, int y) {
+        long offset = wordOffset(x, y);
+        return (region(offset).getLong((int) (offset % regionBytes)) & (1L << ((y - 1) % BLOCK_DIM))) != 0;
+    }
+
+    @Override
+    public void markDiscarded(int x, int y) {
+        long offset = wordOffset(x, y);
+        MappedByteBuffer data = region(offset);
+        int index = (int) (offset % regionBytes);
+        long word = data.getLong(index);
+        long bit = 1L << ((y - 1) % BLOCK_DIM);
+        if ((word & bit) == 0) {
+            data.putLong(index, word | bit);
+            discardedCount++;
+            header.putLong(8, discardedCount);
+        }
+    }
+
+    @Override
+    public long countDiscarded() {
+        return discardedCount;
+    }
+
+    /**
+     * @return the number of regions of the file mapped so far
+     */
+    public int getMappedRegions() {
+        int mapped = 0;
+        for (MappedByteBuffer region : regions) {
+            if (region != null) {
+                mapped++;
+            }
+        }
+        return mapped;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (MappedByteBuffer region : regions) {
+            if (region != null) {
+                region.force();
+            }
+        }
+        header.force();
+    }
+
+    /**
+     * Flush the changes and close the file. The regions are unmapped when they
+     * are garbage collected.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            flush();
+            channel.close();
+        }
+    }
+
+    /**
+     * Get the offset in the data of the word with the bit of a position
+     */
+    long wordOffset(int x, int y) {
+        long block = (long) ((x - 1) / BLOCK_DIM) * blocksPerSide + (y - 1) / BLOCK_DIM;
+        return block * BLOCK_BYTES + ((x - 1) % BLOCK_DIM) * 8;
+    }
+
+    /**
+     * Get the region that contains an offset of the data, mapping it if needed
+     */
+    MappedByteBuffer region(long offset) {
+        int r = (int) (offset / regionBytes);
+        if (regions[r] == null) {
+            long start = (long) r * regionBytes;
+            try {
+                regions[r] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + start,
+                        Math.min(regionBytes, dataBytes - start));
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Cannot map the knowledge store", ex);
+            }
+        }
+        return regions[r];
+    }
+}
@@ -0,0 +1,136 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *  Binary trace of the messages exchanged between an agent and the
+ *  EnvelopeWorldEnv object, that can be served again later by an
+ *  EnvelopeWorldReplayEnv object.
+ *
+ *  The file starts with a header (magic number and world dimension), followed
+ *  by one fixed-size record per message: request type, x, y, answer type, x, y
+ *  and sensor reading (as a bit mask). Records are accumulated in a buffer and
+ *  written through a file channel when the buffer is full.
+ **/
+public class MessageTraceWriter {
+
+    /**
+     * Magic number at the beginning of the file ("EFTR")
+     */
+    static final int MAGIC = 0x45465452;
+    /**
+     * Size in bytes of the header and of every record
+     */
+    static final int HEADER_SIZE = 8, RECORD_SIZE = 19;
+    /**
+     * Codes of the message types stored in the trace
+     */
+    static final byte VOIDMSG = 0, MOVETO = 1, DETECTSAT = 2, MOVEDTO = 3, NOTMOVEDTO = 4, SENSORS = 5;
+
+    /**
+     * Channel of the trace file, and buffer of records not yet written
+     */
+    FileChannel channel;
+    ByteBuffer buffer;
+
+    /**
+     * Create a new trace file, replacing any previous file with the same name
+     *
+     * @param fileName name of the trace file
+     * @param WDim dimension of the world
+     * @throws IOException
+     */
+    public MessageTraceWriter(String fileName, int WDim) throws IOException {
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = ByteBuffer.allocateDirect(RECORD_SIZE * 4096);
+        buffer.putInt(MAGIC);
+        buffer.putInt(WDim);
+    }
+
+    /**
+     * Append a message and the answer given to it
+     *
+     * @param msg message sent by the agent
+     * @param ans answer returned by the environment
+     * @throws IOException
+     */
+    public void record(AMessage msg, AMessage ans) throws IOException {
+        if (buffer.remaining() < RECORD_SIZE) {
+            flush();
+        }
+        byte requestType = encodeType(msg.getComp(0), false);
+        buffer.put(requestType);
+        buffer.putInt(parseCoord(msg.getComp(1)));
+        buffer.putInt(parseCoord(msg.getComp(2)));
+
+        byte answerType = encodeType(ans.getComp(0), requestType == DETECTSAT);
+        buffer.put(answerType);
+        buffer.putInt(parseCoord(ans.getComp(1)));
+        buffer.putInt(parseCoord(ans.getComp(2)));
+        buffer.put(answerType == SENSORS ? (byte) SensorReading.parse(ans.getComp(0)).getMask() : 0);
+    }
+
+    /**
+     * Write the buffered records to the file
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Write the buffered records and close the file
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    /**
+     * Get the code of a message type
+     *
+     * @param type first field of the message
+     * @param sensors whether the message is the answer to a detectsat message,
+     *                whose first field is the sensors output
+     * @return the code of the message type
+     */
+    static byte encodeType(String type, boolean sensors) {
+        if (sensors) {
+            return SENSORS;
+        }
+        switch (type) {
+            case "moveto":
+                return MOVETO;
+            case "detectsat":
+                return DETECTSAT;
+            case "movedto":
+                return MOVEDTO;
+            case "notmovedto":
+                return NOTMOVEDTO;
+            default:
+                return VOIDMSG;
+        }
+    }
+
+    /**
+     * Parse a coordinate field of a message (0 if the field is empty)
+     *
+     * @param field the field of the message
+     * @return the coordinate
+     */
+    static int parseCoord(String field) {
+        return field.isEmpty() ? 0 : Integer.parseInt(field);
+    }
+}
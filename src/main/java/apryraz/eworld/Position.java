@@ -1,7 +1,5 @@
 package apryraz.eworld;
 
-import java.util.Objects;
-
 public class Position {
  /**
 
@@ -36,7 +34,8 @@ public class Position {
     }
     @Override
     public int hashCode() {
-        return Objects.hash(x, y);
+        // Same value as Objects.hash(x, y), without boxing the coordinates
+        return 31 * (31 + x) + y;
     }
 
     public int getX() {
@@ -0,0 +1,194 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.FileWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Locale;
+
+/**
+ *  Statistics of a run of the EnvelopeFinder agent: latency histograms of the
+ *  whole step and of every phase of the step, number of SAT calls, positions
+ *  discarded per second and peak heap usage. The report can be printed for
+ *  humans, or written as CSV or JSON to compare runs.
+ **/
+public class RunStatistics {
+
+    /**
+     * Latency of the whole step, and of every phase (indexed as in EnvelopeFinder)
+     */
+    LatencyHistogram stepLatency = new LatencyHistogram();
+    LatencyHistogram[] phaseLatency = new LatencyHistogram[EnvelopeFinder.PHASE_NAMES.length];
+    /**
+     * Dimension of the world, SAT calls made during the run (in total and by
+     * what-if queries) and positions discarded (in total and by unit propagation)
+     */
+    int WorldDim;
+    long satCalls, hypotheticalSatCalls, discardedPositions, propagatedPositions;
+    /**
+     * Number of SAT calls made by the agent before the run started (in total
+     * and by what-if queries)
+     */
+    long initialSatCalls, initialHypotheticalSatCalls;
+
+    /**
+     * Class constructor
+     *
+     * @param agent the agent whose steps are going to be recorded
+     */
+    public RunStatistics(EnvelopeFinder agent) {
+        WorldDim = agent.WorldDim;
+        initialSatCalls = agent.numSatCalls;
+        initialHypotheticalSatCalls = agent.numHypotheticalSatCalls;
+        for (int phase = 0; phase < phaseLatency.length; phase++) {
+            phaseLatency[phase] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Record the last step performed by the agent
+     *
+     * @param agent the agent
+     */
+    public void recordStep(EnvelopeFinder agent) {
+        long stepNanos = 0;
+        for (int phase = 0; phase < phaseLatency.length; phase++) {
+            phaseLatency[phase].record(agent.lastStepNanos[phase]);
+            stepNanos += agent.lastStepNanos[phase];
+        }
+        stepLatency.record(stepNanos);
+        satCalls = agent.numSatCalls - initialSatCalls;
+        hypotheticalSatCalls = agent.numHypotheticalSatCalls - initialHypotheticalSatCalls;
+        discardedPositions += agent.lastConclusions.size();
+        propagatedPositions += agent.lastPropagationConclusions;
+    }
+
+    /**
+     * Get the positions discarded per second of step time
+     *
+     * @return discarded positions per second
+     */
+    public double getDiscardedPerSecond() {
+        return stepLatency.getTotal() == 0 ? 0 : discardedPositions / (stepLatency.getTotal() / 1e9);
+    }
+
+    /**
+     * Get the peak usage of the heap since the JVM started
+     *
+     * @return sum of the peak usage of all the heap memory pools, in bytes
+     */
+    public static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * Print the report in human readable form
+     *
+     * @param out stream where to print it
+     */
+    public void printReport(PrintStream out) {
+        out.println("STATS => world " + WorldDim + "x" + WorldDim + ", " + stepLatency.getCount() + " steps");
+        out.println(String.format(Locale.ROOT, "STATS => %-10s %12s %12s %12s %12s", "latency ms", "p50", "p90", "p99", "max"));
+        printLatency(out, "step", stepLatency);
+        for (int phase = 0; phase < phaseLatency.length; phase++) {
+            printLatency(out, EnvelopeFinder.PHASE_NAMES[phase], phaseLatency[phase]);
+        }
+        out.println("STATS => SAT calls: " + satCalls + ", " + hypotheticalSatCalls + " by what-if queries");
+        out.println("STATS => positions discarded: " + discardedPositions
+                + String.format(Locale.ROOT, " (%.1f per second), %d by propagation", getDiscardedPerSecond(), propagatedPositions));
+        out.println(String.format(Locale.ROOT, "STATS => peak heap: %.1f MB", getPeakHeap() / (1024.0 * 1024.0)));
+    }
+
+    /**
+     * Write the report in a file, as CSV if its name ends with .csv or as JSON otherwise
+     *
+     * @param fileName name of the file
+     * @throws IOException
+     */
+    public void writeReport(String fileName) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(fileName))) {
+            if (fileName.endsWith(".csv")) {
+                writeCsv(out);
+            } else {
+                writeJson(out);
+            }
+        }
+    }
+
+    /**
+     * Write the report as CSV: one row per latency histogram, with the global
+     * values repeated in every row
+     *
+     * @param out where to write it
+     */
+    void writeCsv(PrintWriter out) {
+        out.println("worlddim,steps,satcalls,whatifsatcalls,discarded,discardedpersecond,peakheapbytes,phase,p50ns,p90ns,p99ns,maxns");
+        writeCsvRow(out, "step", stepLatency);
+        for (int phase = 0; phase < phaseLatency.length; phase++) {
+            writeCsvRow(out, EnvelopeFinder.PHASE_NAMES[phase], phaseLatency[phase]);
+        }
+    }
+
+    /**
+     * Write the report as a JSON object
+     *
+     * @param out where to write it
+     */
+    void writeJson(PrintWriter out) {
+        out.println("{");
+        out.println("  \"worldDim\": " + WorldDim + ",");
+        out.println("  \"steps\": " + stepLatency.getCount() + ",");
+        out.println("  \"satCalls\": " + satCalls + ",");
+        out.println("  \"whatIfSatCalls\": " + hypotheticalSatCalls + ",");
+        out.println("  \"discarded\": " + discardedPositions + ",");
+        out.println("  \"discardedByPropagation\": " + propagatedPositions + ",");
+        out.println("  \"discardedPerSecond\": " + String.format(Locale.ROOT, "%.3f", getDiscardedPerSecond()) + ",");
+        out.println("  \"peakHeapBytes\": " + getPeakHeap() + ",");
+        out.println("  \"latencyNanos\": {");
+        out.print("    " + jsonLatency("step", stepLatency));
+        for (int phase = 0; phase < phaseLatency.length; phase++) {
+            out.println(",");
+            out.print("    " + jsonLatency(EnvelopeFinder.PHASE_NAMES[phase], phaseLatency[phase]));
+        }
+        out.println();
+        out.println("  }");
+        out.println("}");
+    }
+
+    /**
+     * Print a line of the human readable report
+     */
+    void printLatency(PrintStream out, String name, LatencyHistogram histogram) {
+        out.println(String.format(Locale.ROOT, "STATS => %-10s %12.3f %12.3f %12.3f %12.3f", name,
+                histogram.percentile(0.5) / 1e6, histogram.percentile(0.9) / 1e6,
+                histogram.percentile(0.99) / 1e6, histogram.getMax() / 1e6));
+    }
+
+    /**
+     * Write a row of the CSV report
+     */
+    void writeCsvRow(PrintWriter out, String name, LatencyHistogram histogram) {
+        out.println(WorldDim + "," + stepLatency.getCount() + "," + satCalls + "," + hypotheticalSatCalls + ","
+                + discardedPositions + ","
+                + String.format(Locale.ROOT, "%.3f", getDiscardedPerSecond()) + "," + getPeakHeap() + "," + name + ","
+                + histogram.percentile(0.5) + "," + histogram.percentile(0.9) + ","
+                + histogram.percentile(0.99) + "," + histogram.getMax());
+    }
+
+    /**
+     * Get the JSON member of a latency histogram
+     */
+    String jsonLatency(String name, LatencyHistogram histogram) {
+        return "\"" + name + "\": {\"p50\": " + histogram.percentile(0.5) + ", \"p90\": " + histogram.percentile(0.9)
+                + ", \"p99\": " + histogram.percentile(0.99) + ", \"max\": " + histogram.getMax() + "}";
+    }
+}
@@ -0,0 +1,225 @@
+package apryraz.eworld;
+
+import java.util.ArrayList;
+
+/**
+ *  Output of the three sensors at a position, as a 3-bit mask (bit 0 for sensor
+ *  1, bit 1 for sensor 2 and bit 2 for sensor 3). There are only eight possible
+ *  readings, so their instances are created once and shared, and compared by
+ *  reference. Each one keeps its text form ("", "1", ..., "123") and the list
+ *  of offsets of the positions where it says that there can't be an envelope.
+ **/
+public final class SensorReading {
+
+    /**
+     * Number of sensors, and mask of each one
+     */
+    static final int NUM_SENSORS = 3;
+    static final int SENSOR1 = 1, SENSOR2 = 2, SENSOR3 = 4;
+
+    /**
+     * Offsets {dx, dy} of the positions in the scope of each sensor: sensor 1
+     * detects the four orthogonal neighbours, sensor 2 the four diagonal ones
+     * and sensor 3 the position itself. Private, as the clauses of every agent
+     * are generated from it: scopeSize(), scopeDx() and scopeDy() read it.
+     */
+    private static final int[][][] SCOPE_OFFSETS = {
+        { {1, 0}, {-1, 0}, {0, -1}, {0, 1} },
+        { {-1, -1}, {1, -1}, {-1, 1}, {1, 1} },
+        { {0, 0} }
+    };
+
+    /**
+     * The eight readings, indexed by their mask
+     */
+    private static final SensorReading[] READINGS = new SensorReading[1 << NUM_SENSORS];
+    static {
+        for (int mask = 0; mask < READINGS.length; mask++) {
+            READINGS[mask] = new SensorReading(mask);
+        }
+    }
+
+    /**
+     * The reading with no detection, and the reading with all the sensors detecting
+     */
+    public static final SensorReading NONE = READINGS[0];
+    public static final SensorReading ALL = READINGS[READINGS.length - 1];
+
+    /**
+     * Bit mask of the sensors that detect an envelope
+     */
+    final int mask;
+    /**
+     * Text form of the reading, with the detecting sensors in increasing order
+     */
+    final String output;
+    /**
+     * Offsets {dx, dy} of the positions where there can't be an envelope: the
+     * scopes of the sensors that don't detect anything. Private, as the
+     * instances are shared: forbiddenCount(), forbiddenDx() and forbiddenDy()
+     * read it.
+     */
+    private final int[][] forbiddenOffsets;
+
+    private SensorReading(int readingMask) {
+        mask = readingMask;
+        String text = "";
+        int numForbidden = 0;
+        for (int sensor = 1; sensor <= NUM_SENSORS; sensor++) {
+            if (detects(sensor)) {
+                text += sensor;
+            } else {
+                numForbidden += SCOPE_OFFSETS[sensor - 1].length;
+            }
+        }
+        output = text;
+        forbiddenOffsets = new int[numForbidden][];
+        int next = 0;
+        for (int sensor = 1; sensor <= NUM_SENSORS; sensor++) {
+            if (!detects(sensor)) {
+                for (int[] offset : SCOPE_OFFSETS[sensor - 1]) {
+                    forbiddenOffsets[next++] = offset;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the reading with a given mask
+     *
+     * @param mask bit mask of the detecting sensors, in the range [0,7]
+     * @return the reading
+     */
+    public static SensorReading of(int mask) {
+        if (mask < 0 || mask >= READINGS.length) {
+            throw new IllegalArgumentException("Invalid sensors mask: " + mask);
+        }
+        return READINGS[mask];
+    }
+
+    /**
+     * Get the reading given by the output of the sensors
+     *
+     * @param sensorsOutput the detecting sensors, such as "13" ("" if none)
+     * @return the reading
+     * @throws IllegalArgumentException if it is not a valid output (a character
+     *         that is not a sensor, or a sensor that appears twice)
+     */
+    public static SensorReading parse(String sensorsOutput) {
+        int mask = 0;
+        for (int i = 0; i < sensorsOutput.length(); i++) {
+            int sensor = sensorsOutput.charAt(i) - '0';
+            if (sensor < 1 || sensor > NUM_SENSORS || (mask & (1 << (sensor - 1))) != 0) {
+                throw new IllegalArgumentException("Invalid sensors output: " + sensorsOutput);
+            }
+            mask |= 1 << (sensor - 1);
+        }
+        return READINGS[mask];
+    }
+
+    /**
+     * @return the bit mask of the detecting sensors
+     */
+    public int getMask() {
+        return mask;
+    }
+
+    /**
+     * Check whether a sensor detects an envelope
+     *
+     * @param sensor number of the sensor, in the range [1,3]
+     * @return true if it detects an envelope
+     */
+    public boolean detects(int sensor) {
+        return (mask & (1 << (sensor - 1))) != 0;
+    }
+
+    /**
+     * @return the number of offsets of the positions where there can't be an
+     *         envelope with this reading
+     */
+    public int forbiddenCount() {
+        return forbiddenOffsets.length;
+    }
+
+    /**
+     * @param k index of the offset, in the range [0,forbiddenCount()-1]
+     * @return the x offset of the k-th position where there can't be an envelope
+     */
+    public int forbiddenDx(int k) {
+        return forbiddenOffsets[k][0];
+    }
+
+    /**
+     * @param k index of the offset, in the range [0,forbiddenCount()-1]
+     * @return the y offset of the k-th position where there can't be an envelope
+     */
+    public int forbiddenDy(int k) {
+        return forbiddenOffsets[k][1];
+    }
+
+    /**
+     * Get the positions where there can't be an envelope if this reading is
+     * obtained at pos (they can fall outside the world)
+     *
+     * @param pos position of the reading
+     * @return a new list with the positions
+     */
+    public ArrayList<Position> getForbiddenPositions(Position pos) {
+        ArrayList<Position> positions = new ArrayList<>(forbiddenOffsets.length);
+        for (int[] offset : forbiddenOffsets) {
+            positions.add(new Position(pos.x + offset[0], pos.y + offset[1]));
+        }
+        return positions;
+    }
+
+    /**
+     * @param sensor number of the sensor, in the range [1,3]
+     * @return the number of positions in the scope of the sensor
+     */
+    public static int scopeSize(int sensor) {
+        return SCOPE_OFFSETS[sensor - 1].length;
+    }
+
+    /**
+     * @param sensor number of the sensor, in the range [1,3]
+     * @param k index of the offset, in the range [0,scopeSize(sensor)-1]
+     * @return the x offset of the k-th position in the scope of the sensor
+     */
+    public static int scopeDx(int sensor, int k) {
+        return SCOPE_OFFSETS[sensor - 1][k][0];
+    }
+
+    /**
+     * @param sensor number of the sensor, in the range [1,3]
+     * @param k index of the offset, in the range [0,scopeSize(sensor)-1]
+     * @return the y offset of the k-th position in the scope of the sensor
+     */
+    public static int scopeDy(int sensor, int k) {
+        return SCOPE_OFFSETS[sensor - 1][k][1];
+    }
+
+    /**
+     * Get the positions in the scope of a sensor (they can fall outside the world)
+     *
+     * @param sensor number of the sensor, in the range [1,3]
+     * @param pos position of the sensor
+     * @return a new list with the positions
+     */
+    public static ArrayList<Position> getScope(int sensor, Position pos) {
+        int[][] offsets = SCOPE_OFFSETS[sensor - 1];
+        ArrayList<Position> positions = new ArrayList<>(offsets.length);
+        for (int[] offset : offsets) {
+            positions.add(new Position(pos.x + offset[0], pos.y + offset[1]));
+        }
+        return positions;
+    }
+
+    /**
+     * @return the output of the sensors, such as "13" ("" if none detects anything)
+     */
+    @Override
+    public String toString() {
+        return output;
+    }
+}
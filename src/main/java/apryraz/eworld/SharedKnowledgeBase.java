@@ -0,0 +1,114 @@
+package apryraz.eworld;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  Knowledge shared by a team of agents that search the same Envelope World.
+ *
+ *  The positions known to be empty are kept one bit per position in an array
+ *  of atomic words, so any agent can read or update them at any time without
+ *  locks. The sensor readings published by the agents are kept in a lock-free
+ *  queue until the coordinator of the team drains them to run the inference.
+ **/
+public class SharedKnowledgeBase {
+
+    /**
+     * Dimension of the world
+     */
+    int WorldDim;
+    /**
+     * Positions known to be empty, one bit per position, row by row
+     */
+    AtomicLongArray discarded;
+    /**
+     * Sensor readings published and not yet drained
+     */
+    ConcurrentLinkedQueue<AMessage> evidence = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Class constructor
+     *
+     * @param WDim dimension of the world
+     */
+    public SharedKnowledgeBase(int WDim) {
+        WorldDim = WDim;
+        discarded = new AtomicLongArray((WorldDim * WorldDim + 63) / 64);
+    }
+
+    /**
+     * Publish the answer of the environment to a detectsat message
+     *
+     * @param ans the answer, with fields: DetectorValue x y
+     */
+    public void publishEvidence(AMessage ans) {
+        evidence.add(ans);
+    }
+
+    /**
+     * Move all the published readings not yet drained to a list
+     *
+     * @param readings list where to add them
+     * @return number of readings drained
+     */
+    public int drainEvidence(List<AMessage> readings) {
+        int drained = 0;
+        AMessage ans;
+        while ((ans = evidence.poll()) != null) {
+            readings.add(ans);
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * Record that there is no envelope at (x,y)
+     *
+     * @param x x coordinate of the position
+     * @param y y coordinate of the position
+     * @return true if it was not known before
+     */
+    public boolean markNoEnvelope(int x, int y) {
+        int position = (x - 1) * WorldDim + y - 1;
+        long bit = 1L << position;
+        int word = position >>> 6;
+        long old;
+        do {
+            old = discarded.get(word);
+            if ((old & bit) != 0) {
+                return false;
+            }
+        } while (!discarded.compareAndSet(word, old, old | bit));
+        return true;
+    }
+
+    /**
+     * Check whether it is known that there is no envelope at (x,y)
+     *
+     * @param x x coordinate of the position
+     * @param y y coordinate of the position
+     * @return true if the position has been discarded
+     */
+    public boolean knownNoEnvelope(int x, int y) {
+        int position = (x - 1) * WorldDim + y - 1;
+        return (discarded.get(position >>> 6) & (1L << position)) != 0;
+    }
+
+    /**
+     * Get the shared knowledge as a state of knowledge
+     *
+     * @return a new EFState with "X" at the discarded positions
+     */
+    public EFState getState() {
+        EFState state = new EFState(WorldDim);
+        for (int x = 1; x <= WorldDim; x++) {
+            for (int y = 1; y <= WorldDim; y++) {
+                if (knownNoEnvelope(x, y)) {
+                    state.set(x, y, "X");
+                }
+            }
+        }
+        return state;
+    }
+}
@@ -0,0 +1,187 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sat4j.specs.*;
+
+/**
+ *  Publisher of the results of the steps of an EnvelopeFinder agent. The
+ *  agent only performs a step when the subscriber has requested one more
+ *  result, so a slow subscriber slows the agent down instead of having the
+ *  results pile up. The steps are performed in the executor, one at a time,
+ *  and the publisher completes when the agent has no steps left (or fails
+ *  with the exception of the step that went wrong).
+ *
+ *  The agent must be ready to step (environment and steps, or planner mode,
+ *  already set) and must not be used by anyone else while it is published.
+ *  As the steps change the agent, it can only have one subscriber.
+ **/
+public class StepPublisher implements Flow.Publisher<StepResult> {
+
+    /**
+     * The agent whose steps are published
+     */
+    EnvelopeFinder agent;
+    /**
+     * Executor where the steps are performed
+     */
+    Executor executor;
+    /**
+     * Whether the publisher already has its subscriber
+     */
+    AtomicBoolean subscribed = new AtomicBoolean();
+
+    /**
+     * Class constructor. The steps are performed in the common fork-join pool.
+     *
+     * @param finder the agent
+     */
+    public StepPublisher(EnvelopeFinder finder) {
+        this(finder, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param finder the agent
+     * @param stepExecutor executor where the steps are performed
+     */
+    public StepPublisher(EnvelopeFinder finder, Executor stepExecutor) {
+        agent = finder;
+        executor = stepExecutor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super StepResult> subscriber) {
+        Objects.requireNonNull(subscriber);
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("The steps of an agent can only have one subscriber"));
+            return;
+        }
+        StepSubscription subscription = new StepSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        // Complete at once if there are no steps to perform
+        subscription.signal();
+    }
+
+    /**
+     * Subscription of the subscriber: it keeps the results requested and not
+     * yet delivered, and performs the steps in the executor
+     */
+    class StepSubscription implements Flow.Subscription {
+        /**
+         * The subscriber
+         */
+        Flow.Subscriber<? super StepResult> subscriber;
+        /**
+         * Results requested and not yet delivered (Long.MAX_VALUE means unbounded)
+         */
+        AtomicLong demand = new AtomicLong();
+        /**
+         * Number of signals not yet handled by the drain loop (the loop is
+         * only running in the executor when it is not 0)
+         */
+        AtomicInteger pendingSignals = new AtomicInteger();
+        /**
+         * Whether the subscription has been cancelled or has terminated, and
+         * error to deliver after a bad request
+         */
+        volatile boolean cancelled;
+        boolean terminated;
+        volatile Throwable badRequest;
+        /**
+         * Steps performed
+         */
+        int steps;
+
+        StepSubscription(Flow.Subscriber<? super StepResult> stepSubscriber) {
+            subscriber = stepSubscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                badRequest = new IllegalArgumentException("Non-positive number of steps requested: " + n);
+            } else {
+                demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+            }
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Run the drain loop in the executor, unless it is already running
+         */
+        void signal() {
+            if (pendingSignals.getAndIncrement() == 0) {
+                executor.execute(this::drain);
+            }
+        }
+
+        /**
+         * Perform steps while there is demand, and terminate when there are no
+         * steps left. Only one drain loop runs at a time.
+         */
+        void drain() {
+            int missed = 1;
+            do {
+                while (!cancelled && !terminated) {
+                    if (badRequest != null) {
+                        terminate(badRequest);
+                    } else if (!agent.hasNextStep()) {
+                        terminate(null);
+                    } else if (demand.get() == 0) {
+                        break;
+                    } else {
+                        try {
+                            agent.runNextStep();
+                        } catch (IOException | ContradictionException | TimeoutException | RuntimeException ex) {
+                            terminate(ex);
+                            break;
+                        }
+                        steps++;
+                        if (demand.get() != Long.MAX_VALUE) {
+                            demand.decrementAndGet();
+                        }
+                        subscriber.onNext(new StepResult(steps, agent));
+                    }
+                }
+                missed = pendingSignals.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * Deliver the final signal to the subscriber
+         *
+         * @param error the error, or null to complete
+         */
+        void terminate(Throwable error) {
+            terminated = true;
+            if (error != null) {
+                subscriber.onError(error);
+            } else {
+                subscriber.onComplete();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package apryraz.eworld;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *  Result of a step of an EnvelopeFinder agent, as published by StepPublisher:
+ *  where the agent sensed, what its sensors said, the positions it discarded
+ *  and the time spent in every phase of the step. It doesn't change once
+ *  created, so it can be handed to other threads.
+ **/
+public final class StepResult {
+
+    /**
+     * Number of the step (starting at 1)
+     */
+    final int step;
+    /**
+     * Position of the agent after the step
+     */
+    final Position position;
+    /**
+     * Output of the sensors at the position
+     */
+    final SensorReading reading;
+    /**
+     * Positions discarded by the inference of the step
+     */
+    final List<Position> newConclusions;
+    /**
+     * Time (in nanoseconds) spent in each phase of the step, indexed as in
+     * EnvelopeFinder.PHASE_NAMES
+     */
+    final long[] phaseNanos;
+
+    /**
+     * Get the result of the last step performed by an agent
+     *
+     * @param stepNumber number of the step (starting at 1)
+     * @param agent the agent
+     */
+    StepResult(int stepNumber, EnvelopeFinder agent) {
+        step = stepNumber;
+        position = new Position(agent.agentX, agent.agentY);
+        reading = agent.lastReading;
+        newConclusions = Collections.unmodifiableList(new ArrayList<>(agent.lastConclusions));
+        phaseNanos = agent.lastStepNanos.clone();
+    }
+
+    /**
+     * @return the number of the step (starting at 1)
+     */
+    public int getStep() {
+        return step;
+    }
+
+    /**
+     * @return the position of the agent after the step
+     */
+    public Position getPosition() {
+        return position;
+    }
+
+    /**
+     * @return the output of the sensors at the position of the agent
+     */
+    public SensorReading getReading() {
+        return reading;
+    }
+
+    /**
+     * @return the positions discarded by the inference of the step (unmodifiable)
+     */
+    public List<Position> getNewConclusions() {
+        return newConclusions;
+    }
+
+    /**
+     * Get the time spent in a phase of the step
+     *
+     * @param phase the phase (EnvelopeFinder.PHASE_MOVE, PHASE_SENSE, ...)
+     * @return time in nanoseconds
+     */
+    public long getPhaseNanos(int phase) {
+        return phaseNanos[phase];
+    }
+
+    /**
+     * @return the time spent in the whole step, in nanoseconds
+     */
+    public long getTotalNanos() {
+        long total = 0;
+        for (long nanos : phaseNanos) {
+            total += nanos;
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "step " + step + " at (" + position.x + "," + position.y + "): sensors \"" + reading + "\", "
+                + newConclusions.size() + " positions discarded";
+    }
+}
@@ -0,0 +1,378 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.sat4j.specs.*;
+
+/**
+*  Version of the EnvelopeFinder agent for very large worlds. The world is
+*  partitioned into square tiles, each one with its own slice of the state of
+*  knowledge. The evidence obtained at a position is sent to every tile that
+*  contains some of the positions it discards, so readings near the border of
+*  a tile also reach the neighbouring tiles.
+*
+*  This agent doesn't use a SAT solver: without a known number of envelopes,
+*  the positions with no envelope that follow from the readings are exactly
+*  the ones that the readings discard (see EnvelopeWorldTile), so it reaches
+*  the same states as EnvelopeFinder. The constraints that span several tiles
+*  are checked here: that the envelopes still have some possible position, and
+*  that every sensor that detects something still has a possible position in
+*  its scope.
+*
+*  Tiles are created the first time some evidence reaches them, and only a
+*  limited number of them is kept loaded. When a tile is evicted, only the set
+*  of its positions known to be empty is kept, and the tile is rebuilt from it
+*  when needed again. Those sets are kept in the heap, or in a KnowledgeStore
+*  (such as a MappedKnowledgeStore) if one is set.
+**/
+public class TiledEnvelopeFinder {
+
+/**
+  * The list of steps to perform
+**/
+    ArrayList<Position> listOfSteps;
+/**
+* index to the next movement to perform, and total number of movements
+**/
+    int idNextStep, numMovements;
+/**
+*   The object that represents the interface to the Envelope World
+**/
+    EnvelopeWorldEnv EnvAgent;
+/**
+*   Agent position in the world
+**/
+    int agentX, agentY;
+/**
+*  Dimension of the world, dimension of the tiles and number of tiles per side
+**/
+    int WorldDim, TileDim, TilesPerSide;
+/**
+*  Maximum number of tiles kept loaded at the same time
+**/
+    int maxLoadedTiles;
+/**
+*  Loaded tiles, in least recently used order
+**/
+    LinkedHashMap<Long, EnvelopeWorldTile> loadedTiles;
+/**
+*  Positions known to be empty of the tiles that have been evicted
+**/
+    HashMap<Long, BitSet> evictedTiles = new HashMap<>();
+/**
+*  Store with the positions known to be empty of the tiles that have been
+*  evicted, used instead of evictedTiles if it is not null
+**/
+    KnowledgeStore knowledgeStore;
+/**
+*  Number of positions of the world not yet discarded. It stands for the global
+*  constraint that says that the envelopes must be in some position.
+**/
+    long numUnknownPositions;
+
+    /**
+     The class constructor.
+
+     @param WDim the dimension of the Envelope World
+     @param TDim the dimension of the tiles
+     @param maxTiles maximum number of tiles kept loaded at the same time
+
+   **/
+    public TiledEnvelopeFinder(int WDim, int TDim, int maxTiles)
+    {
+        WorldDim = WDim;
+        TileDim = TDim;
+        TilesPerSide = (WorldDim + TileDim - 1) / TileDim;
+        maxLoadedTiles = maxTiles;
+        numUnknownPositions = (long) WorldDim * WorldDim;
+        numMovements = 0;
+        idNextStep = 0;
+
+        loadedTiles = new LinkedHashMap<Long, EnvelopeWorldTile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, EnvelopeWorldTile> eldest) {
+                if (size() > maxLoadedTiles) {
+                    saveTile(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        System.out.println("STARTING TILED Envelope FINDER AGENT...");
+    }
+
+    /**
+      Store a reference to the Environment Object that will be used by the
+      agent to interact with the Envelope World.
+
+      @param environment the Environment object
+
+    **/
+    public void setEnvironment( EnvelopeWorldEnv environment ) {
+         EnvAgent =  environment;
+    }
+
+    /**
+      Keep the positions known to be empty of the evicted tiles in a store
+      instead of the heap. The store can already contain the knowledge of a
+      previous run over the same world, which is then used as known. The
+      knowledge of the tiles evicted and loaded so far is moved to the store.
+
+      @param store the store, of a world with the same dimension
+
+    **/
+    public void setKnowledgeStore( KnowledgeStore store ) {
+        if (store.getDimension() != WorldDim) {
+            throw new IllegalArgumentException("Knowledge store of dimension " + store.getDimension()
+                    + " for a world of dimension " + WorldDim);
+        }
+        knowledgeStore = store;
+        for (Map.Entry<Long, BitSet> tile : evictedTiles.entrySet()) {
+            writeTile(tile.getKey(), tile.getValue());
+        }
+        evictedTiles.clear();
+        for (Map.Entry<Long, EnvelopeWorldTile> tile : loadedTiles.entrySet()) {
+            writeTile(tile.getKey(), tile.getValue().getKnownPositions());
+        }
+        // They are loaded again with the knowledge of the store
+        loadedTiles.clear();
+        numUnknownPositions = (long) WorldDim * WorldDim - store.countDiscarded();
+    }
+
+    /**
+      Write the knowledge of the loaded tiles to the knowledge store, if any,
+      and flush it. The tiles stay loaded.
+
+      @throws IOException
+
+    **/
+    public void flush() throws IOException {
+        if (knowledgeStore != null) {
+            for (Map.Entry<Long, EnvelopeWorldTile> tile : loadedTiles.entrySet()) {
+                writeTile(tile.getKey(), tile.getValue().getKnownPositions());
+            }
+            knowledgeStore.flush();
+        }
+    }
+
+    /**
+      Load a sequence of steps to be performed by the agent.
+
+      @param numSteps number of steps to read from the file
+      @param stepsFile the name of the text file with the line that contains
+                       the sequence of steps: x1,y1 x2,y2 ...  xn,yn
+
+    **/
+    public void loadListOfSteps( int numSteps, String stepsFile )
+    {
+        listOfSteps = EnvelopeFinder.readListOfSteps(numSteps, stepsFile);
+        numMovements = listOfSteps.size();
+        idNextStep = 0;
+    }
+
+    /**
+    *    Execute the next step in the sequence of steps of the agent: move, use
+    *    the sensors, send the evidence to the affected tiles and check that the
+    *    readings are still consistent.
+    **/
+    public void runNextStep() throws ContradictionException
+    {
+        if (idNextStep >= numMovements) {
+            System.out.println("NO MORE steps to perform at agent!");
+            return;
+        }
+        Position nextPosition = listOfSteps.get(idNextStep);
+        idNextStep = idNextStep + 1;
+
+        AMessage moveans = EnvAgent.acceptMessage(new AMessage("moveto", Integer.toString(nextPosition.x), Integer.toString(nextPosition.y), ""));
+        if (moveans.getComp(0).equals("movedto")) {
+            agentX = Integer.parseInt(moveans.getComp(1));
+            agentY = Integer.parseInt(moveans.getComp(2));
+            System.out.println("FINDER => moved to : (" + agentX + "," + agentY + ")");
+        }
+        if (agentX == 0) {
+            // The agent is not in the world yet
+            return;
+        }
+
+        AMessage ans = EnvAgent.acceptMessage(new AMessage("detectsat", Integer.toString(agentX), Integer.toString(agentY), ""));
+        System.out.println("FINDER => detecting at : (" + agentX + "," + agentY + ") Sensors output: " + ans.getComp(0));
+
+        // Group the discarded positions by the tile that contains them
+        SensorReading reading = SensorReading.parse(ans.getComp(0));
+        LinkedHashMap<Long, ArrayList<Position>> evidence = new LinkedHashMap<>();
+        for (int k = 0; k < reading.forbiddenCount(); k++) {
+            Position pos = new Position(agentX + reading.forbiddenDx(k), agentY + reading.forbiddenDy(k));
+            if (withinLimits(pos)) {
+                evidence.computeIfAbsent(tileKey(pos), key -> new ArrayList<>()).add(pos);
+            }
+        }
+
+        // Send the evidence to each tile, loading each one only once
+        int discarded = 0;
+        for (ArrayList<Position> tileEvidence : evidence.values()) {
+            EnvelopeWorldTile tile = getTile(tileEvidence.get(0));
+            for (Position pos : tileEvidence) {
+                if (tile.addNoEnvelope(pos)) {
+                    discarded++;
+                }
+            }
+        }
+        numUnknownPositions -= discarded;
+        if (numUnknownPositions == 0) {
+            throw new ContradictionException("No possible position left for the envelopes");
+        }
+        // The scope of a detecting sensor can span several tiles
+        for (int sensor = 1; sensor <= SensorReading.NUM_SENSORS; sensor++) {
+            if (reading.detects(sensor) && !hasPossiblePosition(sensor)) {
+                throw new ContradictionException("Sensor " + sensor + " detects an envelope at (" + agentX + ","
+                        + agentY + "), but all the positions of its scope are discarded");
+            }
+        }
+        System.out.println("FINDER => " + discarded + " positions discarded, " + numUnknownPositions
+                + " still possible, " + loadedTiles.size() + " tiles loaded");
+    }
+
+    /**
+     * Check whether some of the positions inside the world in the scope of a
+     * sensor at the position of the agent can still have an envelope
+     *
+     * @param sensor number of the sensor, in the range [1,3]
+     * @return true if some of them is not discarded
+     */
+    boolean hasPossiblePosition(int sensor) {
+        // Only used to look up the tiles, it is never stored
+        Position probe = new Position(0, 0);
+        for (int k = 0; k < SensorReading.scopeSize(sensor); k++) {
+            probe.x = agentX + SensorReading.scopeDx(sensor, k);
+            probe.y = agentY + SensorReading.scopeDy(sensor, k);
+            if (withinLimits(probe) && getCellState(probe).equals("?")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the tile that contains a position, loading it if needed
+     *
+     * @param pos x,y coordinate
+     * @return the tile that contains pos
+     */
+    public EnvelopeWorldTile getTile(Position pos) {
+        long key = tileKey(pos);
+        EnvelopeWorldTile tile = loadedTiles.get(key);
+        if (tile == null) {
+            int oX = (int) (key / TilesPerSide) * TileDim;
+            int oY = (int) (key % TilesPerSide) * TileDim;
+            BitSet known = knowledgeStore != null ? readTile(key) : evictedTiles.remove(key);
+            tile = new EnvelopeWorldTile(oX, oY, TileDim, WorldDim, known);
+            loadedTiles.put(key, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Get the state of knowledge about a position, without loading its tile
+     *
+     * @param pos x,y coordinate
+     * @return "X" if there can't be an envelope at pos, "?" otherwise
+     */
+    public String getCellState(Position pos) {
+        long key = tileKey(pos);
+        EnvelopeWorldTile tile = loadedTiles.get(key);
+        if (tile != null) {
+            return tile.get(pos);
+        }
+        if (knowledgeStore != null) {
+            return knowledgeStore.isDiscarded(pos.getX(), pos.getY()) ? "X" : "?";
+        }
+        BitSet known = evictedTiles.get(key);
+        int i = (pos.getX() - 1) % TileDim;
+        int j = (pos.getY() - 1) % TileDim;
+        return (known != null && known.get(i * TileDim + j)) ? "X" : "?";
+    }
+
+    /**
+     * Get the number of positions of the world not yet discarded
+     *
+     * @return number of possible positions for the envelopes
+     */
+    public long getNumUnknownPositions() {
+        return numUnknownPositions;
+    }
+
+    /**
+     * Keep the positions known to be empty of a tile that is evicted
+     *
+     * @param key identifier of the tile
+     * @param tile the tile
+     */
+    void saveTile(long key, EnvelopeWorldTile tile) {
+        if (knowledgeStore != null) {
+            writeTile(key, tile.getKnownPositions());
+        } else {
+            evictedTiles.put(key, tile.getKnownPositions());
+        }
+    }
+
+    /**
+     * Add the positions known to be empty of a tile to the knowledge store
+     *
+     * @param key identifier of the tile
+     * @param known lineal indexes (inside the tile) of the positions
+     */
+    void writeTile(long key, BitSet known) {
+        int oX = (int) (key / TilesPerSide) * TileDim;
+        int oY = (int) (key % TilesPerSide) * TileDim;
+        for (int lineal = known.nextSetBit(0); lineal >= 0; lineal = known.nextSetBit(lineal + 1)) {
+            knowledgeStore.markDiscarded(oX + lineal / TileDim + 1, oY + lineal % TileDim + 1);
+        }
+    }
+
+    /**
+     * Get the positions known to be empty of a tile from the knowledge store
+     *
+     * @param key identifier of the tile
+     * @return lineal indexes (inside the tile) of the positions
+     */
+    BitSet readTile(long key) {
+        int oX = (int) (key / TilesPerSide) * TileDim;
+        int oY = (int) (key % TilesPerSide) * TileDim;
+        BitSet known = new BitSet(TileDim * TileDim);
+        for (int i = 1; i <= TileDim && oX + i <= WorldDim; i++) {
+            for (int j = 1; j <= TileDim && oY + j <= WorldDim; j++) {
+                if (knowledgeStore.isDiscarded(oX + i, oY + j)) {
+                    known.set((i - 1) * TileDim + j - 1);
+                }
+            }
+        }
+        return known;
+    }
+
+    /**
+     * Get the identifier of the tile that contains a position
+     *
+     * @param pos x,y coordinate
+     * @return the identifier of the tile
+     */
+    long tileKey(Position pos) {
+        return (long) ((pos.getX() - 1) / TileDim) * TilesPerSide + (pos.getY() - 1) / TileDim;
+    }
+
+    /**
+     * Check if position x,y is within the limits of the
+     * WorldDim x WorldDim   world
+     *
+     * @param pos x,y coordinate
+     * @return true if (x,y) is within the limits of the world
+     **/
+    public boolean withinLimits(Position pos) {
+        return (pos.getX() >= 1 && pos.getX() <= WorldDim && pos.getY() >= 1 && pos.getY() <= WorldDim);
+    }
+}
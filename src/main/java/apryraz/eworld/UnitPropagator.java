@@ -0,0 +1,180 @@
+package apryraz.eworld;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.sat4j.specs.IVecInt;
+
+/**
+ *  Unit propagation over a copy of the clauses of the formula of an agent,
+ *  used as a cheap first tier of inference before the SAT solver.
+ *
+ *  Clauses only ever get added, so every literal it derives holds for the
+ *  rest of the life of the formula: there is no backtracking, the literals
+ *  already false are dropped from a new clause, and a clause already
+ *  satisfied is not kept at all. The remaining clauses watch two literals
+ *  not yet false, and are only visited when one of them becomes false.
+ *
+ *  Only derived literals are sound conclusions: a literal that is not derived
+ *  can still be a logical consequence of the formula, and it must be checked
+ *  with the solver.
+ **/
+public class UnitPropagator {
+
+    /**
+     * Value of every variable: 1 true, -1 false, 0 unknown
+     */
+    byte[] values;
+    /**
+     * Clauses being watched by each literal (index 2*var for the positive
+     * literal and 2*var+1 for the negative one)
+     */
+    ArrayList<ArrayList<int[]>> watches = new ArrayList<>();
+    /**
+     * Literals set to true and not yet propagated
+     */
+    int[] queue = new int[16];
+    int queueSize;
+    /**
+     * Whether the clauses are contradictory
+     */
+    boolean conflict;
+
+    /**
+     * Class constructor
+     *
+     * @param numVars number of variables (more can be used later)
+     */
+    public UnitPropagator(int numVars) {
+        values = new byte[numVars + 1];
+        ensureVars(numVars);
+    }
+
+    /**
+     * Add a clause and propagate its consequences
+     *
+     * @param clause literals of the clause
+     */
+    public void addClause(IVecInt clause) {
+        int[] literals = new int[clause.size()];
+        int size = 0;
+        for (int i = 0; i < clause.size(); i++) {
+            int literal = clause.get(i);
+            ensureVars(Math.abs(literal));
+            int value = value(literal);
+            if (value > 0) {
+                // Satisfied for ever
+                return;
+            }
+            if (value == 0) {
+                literals[size++] = literal;
+            }
+        }
+        if (size == 0) {
+            conflict = true;
+        } else if (size == 1) {
+            assign(literals[0]);
+            propagate();
+        } else {
+            int[] kept = Arrays.copyOf(literals, size);
+            watches.get(index(-kept[0])).add(kept);
+            watches.get(index(-kept[1])).add(kept);
+        }
+    }
+
+    /**
+     * Check whether it has been derived that a literal is false
+     *
+     * @param literal the literal
+     * @return true if its negation has been derived (never if the clauses are
+     *         contradictory, as then everything should be checked by the solver)
+     */
+    public boolean isFalse(int literal) {
+        return !conflict && Math.abs(literal) < values.length && value(literal) < 0;
+    }
+
+    /**
+     * Set a literal to true, if it is not already (a conflict if it is false)
+     */
+    void assign(int literal) {
+        int value = value(literal);
+        if (value < 0) {
+            conflict = true;
+        } else if (value == 0) {
+            values[Math.abs(literal)] = (byte) (literal > 0 ? 1 : -1);
+            if (queueSize == queue.length) {
+                queue = Arrays.copyOf(queue, queueSize * 2);
+            }
+            queue[queueSize++] = literal;
+        }
+    }
+
+    /**
+     * Propagate the literals in the queue. The clauses watched by the negation
+     * of a true literal look for another literal to watch, and assign the other
+     * watched literal when there is none.
+     */
+    void propagate() {
+        while (queueSize > 0 && !conflict) {
+            int literal = queue[--queueSize];
+            // Clauses watching -literal, that has just become false
+            ArrayList<int[]> watching = watches.get(index(literal));
+            int kept = 0;
+            for (int w = 0; w < watching.size(); w++) {
+                int[] clause = watching.get(w);
+                // Keep the false watched literal in position 1
+                if (clause[0] == -literal) {
+                    clause[0] = clause[1];
+                    clause[1] = -literal;
+                }
+                boolean moved = false;
+                if (value(clause[0]) <= 0) {
+                    for (int i = 2; i < clause.length; i++) {
+                        if (value(clause[i]) >= 0) {
+                            clause[1] = clause[i];
+                            clause[i] = -literal;
+                            watches.get(index(-clause[1])).add(clause);
+                            moved = true;
+                            break;
+                        }
+                    }
+                    if (!moved) {
+                        assign(clause[0]);
+                    }
+                }
+                if (!moved) {
+                    watching.set(kept++, clause);
+                }
+            }
+            watching.subList(kept, watching.size()).clear();
+        }
+    }
+
+    /**
+     * @return 1 if the literal is true, -1 if false, 0 if unknown
+     */
+    int value(int literal) {
+        int value = values[Math.abs(literal)];
+        return literal > 0 ? value : -value;
+    }
+
+    /**
+     * Get the index of the list of clauses that must be visited when a literal
+     * becomes true (the clauses that watch its negation)
+     */
+    int index(int literal) {
+        return literal > 0 ? 2 * literal : -2 * literal + 1;
+    }
+
+    /**
+     * Make room for the variables up to numVars
+     */
+    void ensureVars(int numVars) {
+        if (numVars >= values.length) {
+            values = Arrays.copyOf(values, Math.max(numVars + 1, values.length * 2));
+        }
+        while (watches.size() < 2 * values.length) {
+            watches.add(new ArrayList<>());
+        }
+    }
+}
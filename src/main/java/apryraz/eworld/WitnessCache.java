@@ -0,0 +1,120 @@
+package apryraz.eworld;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ *  Recent models of the formula of an agent, kept as witnesses that some
+ *  positions can still have an envelope. When the query of a position is
+ *  satisfiable the model found proves that the position can't be discarded,
+ *  and while the model agrees with all the readings obtained later it keeps
+ *  proving it, so the position doesn't need to be checked with the solver
+ *  again.
+ *
+ *  Only the positions of the envelopes of every model are kept: the rest of
+ *  the variables of the formula can always be set to agree with them, and the
+ *  variables of the sensors of the positions not yet sensed would make the
+ *  models disagree with almost every new reading. A reading only drops the
+ *  models with an envelope where the reading says that there can't be one, or
+ *  (when the number of envelopes is known) with no envelope where it says
+ *  that there must be one.
+ *
+ *  The models found by the solver usually have very few envelopes, so every
+ *  model tends to be a witness of a single position. The number of models
+ *  kept is bounded; when a new one arrives, the least recently used one is
+ *  dropped (a model is used when it is a witness of a position).
+ **/
+public class WitnessCache {
+
+    /**
+     * Default maximum number of models
+     */
+    static final int DEFAULT_MAX_MODELS = 64;
+
+    /**
+     * The models, as the set of lineal indexes (starting at 0) of the positions
+     * of their envelopes, from the least recently used one
+     */
+    ArrayDeque<BitSet> models = new ArrayDeque<>();
+    /**
+     * Maximum number of models
+     */
+    int maxModels;
+
+    /**
+     * Class constructor
+     *
+     * @param maximumModels maximum number of models kept
+     */
+    public WitnessCache(int maximumModels) {
+        maxModels = Math.max(1, maximumModels);
+    }
+
+    /**
+     * Add a model found by the solver
+     *
+     * @param envelopes lineal indexes (starting at 0) of the positions with an
+     *                  envelope in the model
+     */
+    public void addModel(BitSet envelopes) {
+        if (models.size() == maxModels) {
+            models.removeFirst();
+        }
+        models.addLast(envelopes);
+    }
+
+    /**
+     * Drop the models that disagree with a new reading
+     *
+     * @param forbidden positions where there can't be an envelope
+     * @param required sets of positions where there must be some envelope
+     */
+    public void retainConsistent(BitSet forbidden, List<BitSet> required) {
+        Iterator<BitSet> it = models.iterator();
+        while (it.hasNext()) {
+            BitSet envelopes = it.next();
+            boolean consistent = !envelopes.intersects(forbidden);
+            for (int i = 0; consistent && i < required.size(); i++) {
+                consistent = envelopes.intersects(required.get(i));
+            }
+            if (!consistent) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Look for a model with an envelope at a position
+     *
+     * @param lineal lineal index (starting at 0) of the position
+     * @return true if some model has an envelope there
+     */
+    public boolean hasWitness(int lineal) {
+        Iterator<BitSet> it = models.descendingIterator();
+        while (it.hasNext()) {
+            BitSet envelopes = it.next();
+            if (envelopes.get(lineal)) {
+                it.remove();
+                models.addLast(envelopes);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drop all the models
+     */
+    public void clear() {
+        models.clear();
+    }
+
+    /**
+     * @return the number of models kept
+     */
+    public int size() {
+        return models.size();
+    }
+}
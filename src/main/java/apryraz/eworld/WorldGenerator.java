@@ -0,0 +1,208 @@
+package apryraz.eworld;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Random;
+
+/**
+ *  Generator of synthetic Envelope Worlds: envelopes files and sequences of
+ *  steps, in the same format read by EnvelopeWorldEnv and
+ *  EnvelopeFinder.loadListOfSteps. The same seed always produces the same world.
+ **/
+public class WorldGenerator {
+
+    /**
+     * Dimension of the world
+     */
+    int WorldDim;
+    /**
+     * Pseudo-random generator
+     */
+    Random random;
+
+    /**
+     * Class constructor
+     *
+     * @param WDim dimension of the world
+     * @param seed seed of the pseudo-random generator
+     */
+    public WorldGenerator(int WDim, long seed) {
+        WorldDim = WDim;
+        random = new Random(seed);
+    }
+
+    /**
+     * Choose the positions of the envelopes at random
+     *
+     * @param numEnvelopes number of envelopes (different positions)
+     * @return the positions of the envelopes
+     */
+    public ArrayList<Position> randomEnvelopes(int numEnvelopes) {
+        LinkedHashSet<Position> envelopes = new LinkedHashSet<>();
+        while (envelopes.size() < Math.min(numEnvelopes, WorldDim * WorldDim)) {
+            envelopes.add(new Position(random.nextInt(WorldDim) + 1, random.nextInt(WorldDim) + 1));
+        }
+        return new ArrayList<>(envelopes);
+    }
+
+    /**
+     * Random walk that starts at a random position and moves, at every step,
+     * to one of the (up to 8) neighbouring positions inside the world
+     *
+     * @param numSteps number of steps of the walk
+     * @return the sequence of steps
+     */
+    public ArrayList<Position> randomWalk(int numSteps) {
+        ArrayList<Position> steps = new ArrayList<>(numSteps);
+        int x = random.nextInt(WorldDim) + 1;
+        int y = random.nextInt(WorldDim) + 1;
+        for (int i = 0; i < numSteps; i++) {
+            steps.add(new Position(x, y));
+            int nextX, nextY;
+            do {
+                nextX = x + random.nextInt(3) - 1;
+                nextY = y + random.nextInt(3) - 1;
+            } while (nextX < 1 || nextX > WorldDim || nextY < 1 || nextY > WorldDim || (WorldDim > 1 && nextX == x && nextY == y));
+            x = nextX;
+            y = nextY;
+        }
+        return steps;
+    }
+
+    /**
+     * Serpentine sweep of the world: rows are visited in increasing order,
+     * alternating the direction of every row. With a stride of 3 the sensors
+     * of the visited positions cover the whole world.
+     *
+     * @param stride distance between two consecutive visited rows (and columns)
+     * @return the sequence of steps
+     */
+    public ArrayList<Position> serpentine(int stride) {
+        ArrayList<Position> steps = new ArrayList<>();
+        ArrayList<Integer> lines = sweepLines(stride);
+        boolean forward = true;
+        for (int x : lines) {
+            for (int k = 0; k < lines.size(); k++) {
+                steps.add(new Position(x, lines.get(forward ? k : lines.size() - 1 - k)));
+            }
+            forward = !forward;
+        }
+        return steps;
+    }
+
+    /**
+     * Spiral sweep of the world, from the border to the center
+     *
+     * @param stride distance between two consecutive visited rows (and columns)
+     * @return the sequence of steps
+     */
+    public ArrayList<Position> spiral(int stride) {
+        ArrayList<Position> steps = new ArrayList<>();
+        ArrayList<Integer> lines = sweepLines(stride);
+        int top = 0, bottom = lines.size() - 1, left = 0, right = lines.size() - 1;
+        while (top <= bottom && left <= right) {
+            for (int k = left; k <= right; k++) {
+                steps.add(new Position(lines.get(top), lines.get(k)));
+            }
+            for (int k = top + 1; k <= bottom; k++) {
+                steps.add(new Position(lines.get(k), lines.get(right)));
+            }
+            if (top < bottom) {
+                for (int k = right - 1; k >= left; k--) {
+                    steps.add(new Position(lines.get(bottom), lines.get(k)));
+                }
+            }
+            if (left < right) {
+                for (int k = bottom - 1; k > top; k--) {
+                    steps.add(new Position(lines.get(k), lines.get(left)));
+                }
+            }
+            top++;
+            bottom--;
+            left++;
+            right--;
+        }
+        return steps;
+    }
+
+    /**
+     * Rows (or columns) visited by a sweep. They are centered so that, with a
+     * stride of 3, the 3x3 squares around them cover the whole world.
+     *
+     * @param stride distance between two consecutive lines
+     * @return the visited lines
+     */
+    ArrayList<Integer> sweepLines(int stride) {
+        ArrayList<Integer> lines = new ArrayList<>();
+        int first = Math.min(WorldDim, (stride + 1) / 2);
+        for (int line = first; line <= WorldDim; line += stride) {
+            lines.add(line);
+        }
+        if (lines.get(lines.size() - 1) + stride / 2 < WorldDim) {
+            lines.add(WorldDim);
+        }
+        return lines;
+    }
+
+    /**
+     * Write a list of positions in a single line: x1,y1 x2,y2 ... xn,yn
+     * (the format of both the envelopes and the steps files)
+     *
+     * @param fileName name of the file
+     * @param positions the list of positions
+     * @throws IOException
+     */
+    public static void writePositions(String fileName, ArrayList<Position> positions) throws IOException {
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(fileName))) {
+            for (int i = 0; i < positions.size(); i++) {
+                if (i > 0) {
+                    bw.write(' ');
+                }
+                bw.write(positions.get(i).getX() + "," + positions.get(i).getY());
+            }
+            bw.newLine();
+        }
+    }
+
+    /**
+     * Generate an envelopes file and a steps file from the command line:
+     *
+     * @param args arg[0] = dimension of the world;
+     *             arg[1] = seed;
+     *             arg[2] = number of envelopes;
+     *             arg[3] = tour: walk:numSteps, serpentine:stride or spiral:stride;
+     *             arg[4] = name of the envelopes file to write;
+     *             arg[5] = name of the steps file to write
+     **/
+    public static void main(String[] args) throws IOException {
+        if (args.length != 6) {
+            System.out.println(" Arguments: dim seed numenvelopes walk:N|serpentine:S|spiral:S envelopesfilename stepsfilename");
+            System.exit(1);
+        }
+        WorldGenerator generator = new WorldGenerator(Integer.parseInt(args[0]), Long.parseLong(args[1]));
+        ArrayList<Position> envelopes = generator.randomEnvelopes(Integer.parseInt(args[2]));
+
+        String[] tour = args[3].split(":");
+        int param = Integer.parseInt(tour[1]);
+        ArrayList<Position> steps;
+        switch (tour[0]) {
+            case "walk":
+                steps = generator.randomWalk(param);
+                break;
+            case "serpentine":
+                steps = generator.serpentine(param);
+                break;
+            case "spiral":
+                steps = generator.spiral(param);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown tour " + tour[0]);
+        }
+        writePositions(args[4], envelopes);
+        writePositions(args[5], steps);
+        System.out.println(envelopes.size() + " envelopes, " + steps.size() + " steps");
+    }
+}
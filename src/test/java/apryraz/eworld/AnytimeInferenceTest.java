@@ -0,0 +1,85 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.sat4j.specs.*;
+import org.sat4j.tools.SolverDecorator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.*;
+
+/**
+ * Class for testing the anytime inference of the EnvelopeFinder agent
+ **/
+public class AnytimeInferenceTest extends EnvelopeFinderTestBase {
+
+    /**
+     * Solver that records the timeouts it gets and, while timingOut is set, runs
+     * out of time in every query
+     **/
+    static class TimingOutSolver extends SolverDecorator {
+        boolean timingOut = true;
+        ArrayList<Long> timeouts = new ArrayList<>();
+
+        TimingOutSolver(ISolver solver) {
+            super(solver);
+        }
+
+        @Override
+        public void setTimeoutMs(long t) {
+            timeouts.add(t);
+            super.setTimeoutMs(t);
+        }
+
+        @Override
+        public boolean isSatisfiable(IVecInt assumps) throws TimeoutException {
+            if (timingOut) {
+                throw new TimeoutException("Timeout (simulated)");
+            }
+            return super.isSatisfiable(assumps);
+        }
+    }
+
+    /**
+     * With a time budget, every SAT call gets as timeout the time left in the
+     * budget of the step, and a call that runs out of time ends the inference
+     * of the step without failing it: its position is checked again later,
+     * and the agent still reaches the final state
+     **/
+    @Test
+    public void timeBudgetBoundsSatCallsTest () throws IOException, ContradictionException, TimeoutException {
+        EnvelopeFinder eAgent = newAgent();
+        // Without witness models, so the step needs SAT calls
+        eAgent.setMaxWitnessModels(0);
+        eAgent.setInferenceBudget(10000, 0);
+        eAgent.runNextStep();
+
+        TimingOutSolver solver = new TimingOutSolver(eAgent.solver);
+        eAgent.solver = solver;
+        long satCalls = eAgent.numSatCalls;
+        eAgent.runNextStep();
+        assertEquals(satCalls + 1, eAgent.numSatCalls);
+        assertFalse(solver.timeouts.isEmpty());
+        for (long timeout : solver.timeouts) {
+            assertTrue(timeout > 0 && timeout <= 10000);
+        }
+        assertFalse(eAgent.isInferenceComplete());
+
+        solver.timingOut = false;
+        while (eAgent.hasNextStep()) {
+            eAgent.runNextStep();
+        }
+        while (!eAgent.isInferenceComplete()) {
+            eAgent.performInferenceQuestions();
+        }
+        EnvelopeFinder plain = newAgent();
+        while (plain.hasNextStep()) {
+            plain.runNextStep();
+        }
+        assertEquals(plain.getState(), eAgent.getState());
+    }
+}
@@ -0,0 +1,153 @@
+package apryraz.eworld;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.sat4j.specs.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.*;
+
+/**
+ * Class for testing the checkpoint files of the EnvelopeFinder agent when
+ * they are damaged by a crash
+ **/
+public class EFCheckpointTest extends EnvelopeFinderTestBase {
+
+    /**
+     * The checkpoint file
+     */
+    File checkpointFile;
+
+    @Before
+    public void createCheckpointFile() throws IOException {
+        checkpointFile = File.createTempFile("eworld", ".ckpt");
+        checkpointFile.delete();
+        checkpointFile.deleteOnExit();
+    }
+
+    /**
+     * Get the state of an agent of test4 after some steps, without checkpoints
+     **/
+    EFState stateAfter(int numSteps) throws IOException, ContradictionException, TimeoutException {
+        EnvelopeFinder eAgent = newAgent();
+        for (int i = 0; i < numSteps; i++) {
+            eAgent.runNextStep();
+        }
+        return eAgent.getState();
+    }
+
+    /**
+     * Run steps of an agent that appends them to the checkpoint file
+     **/
+    void runWithCheckpoint(EnvelopeFinder eAgent, int numSteps) throws IOException, ContradictionException, TimeoutException {
+        eAgent.setCheckpoint(checkpointFile.getPath(), 4);
+        for (int i = 0; i < numSteps; i++) {
+            eAgent.runNextStep();
+        }
+        eAgent.closeCheckpoint();
+    }
+
+    /**
+     * Append bytes to the checkpoint file, as a crash in the middle of a write would
+     **/
+    void appendBytes(byte[] bytes) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(checkpointFile, "rw")) {
+            file.seek(file.length());
+            file.write(bytes);
+        }
+    }
+
+    /**
+     * A record cut short at the end of the file is ignored when restoring, and
+     * removed when the file is opened again, so the records of the resumed run
+     * can be read after it
+     **/
+    @Test
+    public void tornRecordTest () throws IOException, ContradictionException, TimeoutException {
+        runWithCheckpoint(newAgent(), 6);
+        long validLength = checkpointFile.length();
+        // Length of a record with 3 conclusions, and only part of its data
+        appendBytes(new byte[] {0, 0, 0, 29, 0, 0, 0, 7, 0, 0});
+
+        EnvelopeFinder restoredAgent = newAgent();
+        restoredAgent.restoreCheckpoint(checkpointFile.getPath());
+        assertEquals(stateAfter(6), restoredAgent.getState());
+
+        runWithCheckpoint(restoredAgent, 6);
+        assertEquals(stateAfter(12), restoredAgent.getState());
+        assertTrue(checkpointFile.length() > validLength);
+
+        EnvelopeFinder resumedAgent = newAgent();
+        resumedAgent.restoreCheckpoint(checkpointFile.getPath());
+        assertEquals(12, resumedAgent.getNumStepsPerformed());
+        assertEquals(stateAfter(12), resumedAgent.getState());
+    }
+
+    /**
+     * A record with a wrong checksum, or with a length that can't be the
+     * length of a record, ends the log
+     **/
+    @Test
+    public void damagedRecordTest () throws IOException, ContradictionException, TimeoutException {
+        runWithCheckpoint(newAgent(), 6);
+        long length = checkpointFile.length();
+
+        // Garble the last byte of the checksum of the last record
+        try (RandomAccessFile file = new RandomAccessFile(checkpointFile, "rw")) {
+            file.seek(length - 1);
+            int last = file.read();
+            file.seek(length - 1);
+            file.write(last ^ 0xFF);
+        }
+        EnvelopeFinder restoredAgent = newAgent();
+        restoredAgent.restoreCheckpoint(checkpointFile.getPath());
+        assertEquals(5, restoredAgent.getNumStepsPerformed());
+        assertEquals(stateAfter(5), restoredAgent.getState());
+
+        // A negative length, and a length too large for a 7x7 world
+        checkpointFile.delete();
+        runWithCheckpoint(newAgent(), 6);
+        appendBytes(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xF0});
+        restoredAgent = newAgent();
+        restoredAgent.restoreCheckpoint(checkpointFile.getPath());
+        assertEquals(stateAfter(6), restoredAgent.getState());
+
+        checkpointFile.delete();
+        runWithCheckpoint(newAgent(), 6);
+        appendBytes(new byte[] {0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0, 0, 0, 1});
+        restoredAgent = newAgent();
+        restoredAgent.restoreCheckpoint(checkpointFile.getPath());
+        assertEquals(stateAfter(6), restoredAgent.getState());
+    }
+
+    /**
+     * An agent with an inference budget has still to check the restored
+     * readings, and it doesn't report the last reading of the run that wrote
+     * the checkpoint. Its inference then reaches the knowledge of an agent
+     * without budget.
+     **/
+    @Test
+    public void budgetedRestoreTest () throws IOException, ContradictionException, TimeoutException {
+        EnvelopeFinder eAgent = newAgent();
+        eAgent.setInferenceBudget(0, 1);
+        runWithCheckpoint(eAgent, 6);
+
+        EnvelopeFinder restoredAgent = newAgent();
+        restoredAgent.setInferenceBudget(0, 1);
+        restoredAgent.restoreCheckpoint(checkpointFile.getPath());
+        assertFalse(restoredAgent.isInferenceComplete());
+        assertNull(restoredAgent.lastReading);
+
+        for (int i = 0; i < 49 && !restoredAgent.isInferenceComplete(); i++) {
+            restoredAgent.performInferenceQuestions();
+        }
+        assertTrue(restoredAgent.isInferenceComplete());
+        assertEquals(stateAfter(6), restoredAgent.getState());
+    }
+}
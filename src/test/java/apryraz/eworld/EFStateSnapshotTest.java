@@ -0,0 +1,141 @@
+package apryraz.eworld;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.*;
+
+/**
+ * Class for testing the snapshots of EFState published by the EnvelopeFinder agent
+ **/
+public class EFStateSnapshotTest extends EnvelopeFinderTestBase {
+
+    /**
+     * A snapshot shares the rows not changed since it was taken, and a row is
+     * copied only the first time it changes after it, so the snapshot never
+     * sees the changes
+     **/
+    @Test
+    public void copyOnWriteTest () {
+        EFState state = new EFState(5);
+        state.set(1, 1, "X");
+        EFStateSnapshot snapshot = state.snapshot(3);
+        assertEquals(3, snapshot.getStep());
+        for (int i = 0; i < 5; i++) {
+            assertSame(state.matrix[i], snapshot.rows[i]);
+        }
+
+        state.set(2, 2, "X");
+        String[] copied = state.matrix[1];
+        assertNotSame(snapshot.rows[1], copied);
+        state.set(2, 3, "X");
+        assertSame(copied, state.matrix[1]);
+        assertSame(state.matrix[0], snapshot.rows[0]);
+        assertEquals("?", snapshot.get(2, 2));
+        assertEquals("?", snapshot.get(2, 3));
+        assertEquals("X", snapshot.get(1, 1));
+
+        // Setting the value a position already has doesn't copy its row
+        state.set(1, 1, "X");
+        assertSame(state.matrix[0], snapshot.rows[0]);
+
+        state.initializeState();
+        assertEquals("X", snapshot.get(1, 1));
+        assertEquals("?", state.matrix[0][0]);
+    }
+
+    /**
+     * The state given by a snapshot is a copy: changing it doesn't change the
+     * snapshot
+     **/
+    @Test
+    public void toStateIsCopyTest () {
+        EFState state = new EFState(4);
+        state.set(3, 4, "X");
+        EFStateSnapshot snapshot = state.snapshot(1);
+        EFState copy = snapshot.toState();
+        assertEquals(state, copy);
+        assertEquals(state.hashCode(), copy.hashCode());
+        copy.set(1, 1, "X");
+        copy.matrix[2][3] = "?";
+        assertEquals("?", snapshot.get(1, 1));
+        assertEquals("X", snapshot.get(3, 4));
+    }
+
+    /**
+     * The snapshots of every step of test4 keep the state at the end of their
+     * step while the agent goes on, also in pipelined mode
+     **/
+    @Test
+    public void agentSnapshotsIsolatedTest () throws Exception {
+        checkAgentSnapshots(false);
+        checkAgentSnapshots(true);
+    }
+
+    /**
+     * Run test4 and check that the snapshot of every step has the number of
+     * that step and keeps its state
+     *
+     * @param pipelined whether to use the pipelined mode
+     **/
+    void checkAgentSnapshots (boolean pipelined) throws Exception {
+        EnvelopeFinder eAgent = newAgent();
+        eAgent.setPipelined(pipelined);
+
+        ArrayList<EFStateSnapshot> snapshots = new ArrayList<>();
+        ArrayList<EFState> states = new ArrayList<>();
+        snapshots.add(eAgent.getSnapshot());
+        states.add(new EFState(7));
+        for (int i = 0; i < 12; i++) {
+            eAgent.runNextStep();
+            snapshots.add(eAgent.getSnapshot());
+            states.add(eAgent.getSnapshot().toState());
+        }
+        for (int i = 0; i <= 12; i++) {
+            assertEquals(i, snapshots.get(i).getStep());
+            assertEquals(states.get(i), snapshots.get(i).toState());
+        }
+        assertEquals(eAgent.getState(), snapshots.get(12).toState());
+    }
+
+    /**
+     * A thread that reads the snapshots while the agent steps always sees the
+     * complete state at the end of some step
+     **/
+    @Test
+    public void concurrentReaderTest () throws Exception {
+        ArrayList<EFState> seqOfStates = new ArrayList<>();
+        EnvelopeFinder reference = newAgent();
+        for (int i = 0; i < 12; i++) {
+            reference.runNextStep();
+            seqOfStates.add(reference.getSnapshot().toState());
+        }
+
+        EnvelopeFinder eAgent = newAgent();
+        AtomicBoolean done = new AtomicBoolean();
+        ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+        Thread monitor = new Thread(() -> {
+            while (!done.get()) {
+                EFStateSnapshot snapshot = eAgent.getSnapshot();
+                EFState expected = snapshot.getStep() == 0 ? new EFState(7) : seqOfStates.get(snapshot.getStep() - 1);
+                if (!expected.equals(snapshot.toState())) {
+                    errors.add("inconsistent snapshot at step " + snapshot.getStep());
+                }
+            }
+        });
+        monitor.start();
+        for (int i = 0; i < 12; i++) {
+            eAgent.runNextStep();
+            assertEquals(i + 1, eAgent.getSnapshot().getStep());
+        }
+        done.set(true);
+        monitor.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+}
@@ -0,0 +1,128 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.sat4j.specs.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.*;
+
+/**
+ * Class for testing the known number of envelopes of the EnvelopeFinder agent
+ **/
+public class EnvelopeCountTest extends EnvelopeFinderTestBase {
+
+    /**
+     * Get an agent of a 5x5 world with a single envelope, ready to step
+     *
+     * @param encoding encoding of the formula
+     * @param envelope position of the envelope
+     * @param steps    positions to sense
+     **/
+    EnvelopeFinder newAgent(GammaEncoding encoding, Position envelope, Position... steps) throws IOException {
+        return newAgent(5, encoding, new ArrayList<>(Arrays.asList(envelope)), new ArrayList<>(Arrays.asList(steps)));
+    }
+
+    /**
+     * Sensor 3 at (3,3) detects the only envelope there, so with exactly one
+     * envelope every other position is discarded, and not only the eight
+     * neighbours cleared by the other sensors
+     **/
+    @Test
+    public void exactCountLocatesEnvelopeTest () throws IOException, ContradictionException, TimeoutException {
+        for (GammaEncoding encoding : GammaEncoding.values()) {
+            EnvelopeFinder counted = newAgent(encoding, new Position(3, 3), new Position(3, 3));
+            counted.setEnvelopeCount(1, true);
+            counted.runNextStep();
+            assertEquals(24, countDiscarded(counted.getState()));
+            assertEquals("?", counted.getState().matrix[2][2]);
+
+            EnvelopeFinder plain = newAgent(encoding, new Position(3, 3), new Position(3, 3));
+            plain.runNextStep();
+            assertEquals(8, countDiscarded(plain.getState()));
+        }
+    }
+
+    /**
+     * Sensor 1 at (3,3) detects an envelope in the four orthogonal neighbours,
+     * so with at most one envelope all the positions out of them are discarded
+     **/
+    @Test
+    public void upperBoundConfinesEnvelopeTest () throws IOException, ContradictionException, TimeoutException {
+        for (GammaEncoding encoding : GammaEncoding.values()) {
+            EnvelopeFinder eAgent = newAgent(encoding, new Position(3, 4), new Position(3, 3));
+            eAgent.setEnvelopeCount(1, false);
+            eAgent.runNextStep();
+            assertEquals(21, countDiscarded(eAgent.getState()));
+            for (Position pos : SensorReading.getScope(1, new Position(3, 3))) {
+                assertEquals("?", eAgent.getState().matrix[pos.x-1][pos.y-1]);
+            }
+        }
+    }
+
+    /**
+     * A count given after some steps also uses the readings already obtained:
+     * the detection of the first step confines the envelope once the count is known
+     **/
+    @Test
+    public void countAfterStepsTest () throws IOException, ContradictionException, TimeoutException {
+        for (GammaEncoding encoding : GammaEncoding.values()) {
+            EnvelopeFinder eAgent = newAgent(encoding, new Position(3, 4), new Position(3, 3), new Position(1, 1));
+            eAgent.runNextStep();
+            assertEquals(5, countDiscarded(eAgent.getState()));
+            eAgent.setEnvelopeCount(1, false);
+            eAgent.runNextStep();
+            assertEquals(21, countDiscarded(eAgent.getState()));
+        }
+    }
+
+    /**
+     * On test4 (7x7 world, three envelopes), the count only adds discarded
+     * positions: every position discarded without it is still discarded,
+     * and no position with an envelope is
+     **/
+    @Test
+    public void countOnlyAddsConclusionsTest () throws IOException, ContradictionException, TimeoutException {
+        Position[] envelopes = { new Position(6, 2), new Position(4, 4), new Position(2, 6) };
+        for (GammaEncoding encoding : GammaEncoding.values()) {
+            EnvelopeFinder counted = newAgent(encoding);
+            counted.setEnvelopeCount(3, true);
+            counted.setCompaction(5, 0);
+            EnvelopeFinder plain = newAgent(encoding);
+            for (int step = 0; step < 12; step++) {
+                counted.runNextStep();
+                plain.runNextStep();
+                for (int i = 0; i < 7; i++) {
+                    for (int j = 0; j < 7; j++) {
+                        if (plain.getState().matrix[i][j].equals("X")) {
+                            assertEquals("X", counted.getState().matrix[i][j]);
+                        }
+                    }
+                }
+                for (Position envelope : envelopes) {
+                    assertEquals("?", counted.getState().matrix[envelope.x-1][envelope.y-1]);
+                }
+            }
+            assertTrue(countDiscarded(counted.getState()) > countDiscarded(plain.getState()));
+        }
+    }
+
+    /**
+     * Get the number of positions of a state that are discarded
+     **/
+    int countDiscarded (EFState state) {
+        int discarded = 0;
+        for (int i = 0; i < state.matrix.length; i++) {
+            for (int j = 0; j < state.matrix.length; j++) {
+                if (state.matrix[i][j].equals("X")) {
+                    discarded++;
+                }
+            }
+        }
+        return discarded;
+    }
+}
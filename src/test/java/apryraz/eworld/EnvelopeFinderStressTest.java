@@ -0,0 +1,197 @@
+package apryraz.eworld;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.sat4j.specs.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.*;
+
+/**
+ * Stress tests with synthetic worlds much larger than the ones in the tests folder.
+ * Every test must finish within a time budget and a heap budget, and the agent
+ * must never discard a position where there is an envelope: this is checked
+ * after every step (only around the agent for the tiled agent, that checks
+ * all of them at the end). The heap budget is
+ * checked against the growth of the peak heap usage reported by the memory
+ * pools of the JVM during the scenario, over the usage at its beginning (that
+ * can still hold garbage of the previous scenarios).
+ *
+ * They are not run by default: use  mvn test -Pstress
+ * The budgets can be scaled with -Dstress.timeFactor=F
+ **/
+public class EnvelopeFinderStressTest extends EnvelopeFinderTestBase {
+
+    /**
+     * Full encoding, 15x15 world, 40 steps of random walk
+     **/
+    @Test
+    public void fullEncodingRandomWalk () throws IOException, ContradictionException, TimeoutException {
+        WorldGenerator generator = new WorldGenerator(15, 1);
+        runScenario(new EnvelopeFinder(15, GammaEncoding.FULL), generator, 8, generator.randomWalk(40), 60, 256);
+    }
+
+    /**
+     * Lazy encoding, 20x20 world, serpentine sweep with stride 3
+     **/
+    @Test
+    public void lazyEncodingSerpentine () throws IOException, ContradictionException, TimeoutException {
+        WorldGenerator generator = new WorldGenerator(20, 2);
+        runScenario(new EnvelopeFinder(20, GammaEncoding.LAZY), generator, 10, generator.serpentine(3), 60, 256);
+    }
+
+    /**
+     * Compact encoding, 30x30 world, spiral sweep with stride 6
+     **/
+    @Test
+    public void compactEncodingSpiral () throws IOException, ContradictionException, TimeoutException {
+        WorldGenerator generator = new WorldGenerator(30, 3);
+        runScenario(new EnvelopeFinder(30, GammaEncoding.COMPACT), generator, 20, generator.spiral(6), 60, 256);
+    }
+
+    /**
+     * Lazy encoding, 500x500 world, 20 steps of random walk with at most
+     * 5 SAT calls and 1 second of inference per step
+     **/
+    @Test
+    public void lazyEncodingLargeWorld () throws IOException, ContradictionException, TimeoutException {
+        WorldGenerator generator = new WorldGenerator(500, 5);
+        EnvelopeFinder eAgent = new EnvelopeFinder(500, GammaEncoding.LAZY);
+        eAgent.setInferenceBudget(1000, 5);
+        runScenario(eAgent, generator, 50, generator.randomWalk(20), 60, 1024);
+    }
+
+    /**
+     * Compact encoding, 1000x1000 world, 20 steps of random walk with at most
+     * 5 SAT calls and 1 second of inference per step
+     **/
+    @Test
+    public void compactEncodingLargeWorld () throws IOException, ContradictionException, TimeoutException {
+        WorldGenerator generator = new WorldGenerator(1000, 6);
+        EnvelopeFinder eAgent = new EnvelopeFinder(1000, GammaEncoding.COMPACT);
+        eAgent.setInferenceBudget(1000, 5);
+        runScenario(eAgent, generator, 100, generator.randomWalk(20), 60, 1024);
+    }
+
+    /**
+     * Tiled agent, 2000x2000 world, 20000 steps of random walk
+     **/
+    @Test
+    public void tiledRandomWalk () throws IOException, ContradictionException, TimeoutException {
+        int wDim = 2000;
+        WorldGenerator generator = new WorldGenerator(wDim, 4);
+        ArrayList<Position> envelopes = generator.randomEnvelopes(5000);
+        ArrayList<Position> steps = generator.randomWalk(20000);
+        File envelopesFile = writeTempFile(envelopes);
+        File stepsFile = writeTempFile(steps);
+
+        long start = System.nanoTime();
+        long startHeap = resetPeakHeap();
+        TiledEnvelopeFinder tAgent = new TiledEnvelopeFinder(wDim, 64, 16);
+        tAgent.setEnvironment(new EnvelopeWorldEnv(wDim, envelopesFile.getPath()));
+        tAgent.loadListOfSteps(steps.size(), stepsFile.getPath());
+        HashSet<Position> envelopeSet = new HashSet<>(envelopes);
+        for (int i = 0; i < steps.size(); i++) {
+            tAgent.runNextStep();
+            // A reading only discards positions of the 3x3 square around the agent
+            for (int x = tAgent.agentX - 1; x <= tAgent.agentX + 1; x++) {
+                for (int y = tAgent.agentY - 1; y <= tAgent.agentY + 1; y++) {
+                    Position pos = new Position(x, y);
+                    if (envelopeSet.contains(pos)) {
+                        assertEquals("Envelope at (" + x + "," + y + ") discarded at step " + (i + 1),
+                                "?", tAgent.getCellState(pos));
+                    }
+                }
+            }
+        }
+        checkBudgets(start, startHeap, 60, 512);
+        for (Position envelope : envelopes) {
+            assertEquals("?", tAgent.getCellState(envelope));
+        }
+    }
+
+    /**
+     * Write the files of a synthetic world, run all its steps with the agent, and
+     * check the budgets and that no envelope position has been discarded.
+     *
+     * @param eAgent        EnvelopeFinder agent
+     * @param generator     generator of the world
+     * @param numEnvelopes  number of envelopes of the world
+     * @param steps         sequence of steps to perform
+     * @param maxSeconds    time budget (before scaling)
+     * @param maxHeapMB     heap budget
+     **/
+    void runScenario (EnvelopeFinder eAgent, WorldGenerator generator, int numEnvelopes, ArrayList<Position> steps,
+                      int maxSeconds, int maxHeapMB) throws IOException, ContradictionException, TimeoutException {
+        ArrayList<Position> envelopes = generator.randomEnvelopes(numEnvelopes);
+        File envelopesFile = writeTempFile(envelopes);
+        File stepsFile = writeTempFile(steps);
+
+        long start = System.nanoTime();
+        long startHeap = resetPeakHeap();
+        eAgent.setEnvironment(new EnvelopeWorldEnv(generator.WorldDim, envelopesFile.getPath()));
+        eAgent.loadListOfSteps(steps.size(), stepsFile.getPath());
+        for (int i = 0; i < steps.size(); i++) {
+            eAgent.runNextStep();
+            checkEnvelopes(eAgent.getState(), envelopes, i + 1);
+        }
+        checkBudgets(start, startHeap, maxSeconds, maxHeapMB);
+    }
+
+    /**
+     * Check that no envelope position has been discarded
+     *
+     * @param state     state of the agent
+     * @param envelopes positions of the envelopes
+     * @param step      number of steps performed, for the message
+     **/
+    void checkEnvelopes (EFState state, ArrayList<Position> envelopes, int step) {
+        for (Position envelope : envelopes) {
+            assertEquals("Envelope at (" + envelope.getX() + "," + envelope.getY() + ") discarded at step " + step,
+                    "?", state.matrix[envelope.getX()-1][envelope.getY()-1]);
+        }
+    }
+
+    /**
+     * Reset the peak usage of the heap memory pools, so the peak read by
+     * checkBudgets only covers what comes next
+     *
+     * @return the heap usage at this point, in bytes
+     **/
+    long resetPeakHeap () {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Check the time elapsed since start and the growth of the peak heap usage
+     * since the call to resetPeakHeap that returned startHeap
+     *
+     * @param start      value of System.nanoTime() at the beginning of the scenario
+     * @param startHeap  value of resetPeakHeap() at the beginning of the scenario
+     * @param maxSeconds time budget (before scaling)
+     * @param maxHeapMB  heap budget
+     **/
+    void checkBudgets (long start, long startHeap, int maxSeconds, int maxHeapMB) {
+        double timeFactor = Double.parseDouble(System.getProperty("stress.timeFactor", "1"));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertTrue("Time budget exceeded: " + seconds + " s", seconds <= maxSeconds * timeFactor);
+
+        long heapMB = (RunStatistics.getPeakHeap() - startHeap) / (1024 * 1024);
+        assertTrue("Heap budget exceeded: " + heapMB + " MB", heapMB <= maxHeapMB);
+    }
+}
@@ -1,10 +1,18 @@
 package apryraz.eworld;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
@@ -20,6 +28,9 @@ import org.sat4j.reader.*;
 import apryraz.eworld.*;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.*;
 
@@ -114,8 +125,23 @@ public class EnvelopeFinderTest {
      * @param fileEnvelopes
      **/
     public void testMakeSeqOfSteps (int wDim, int numSteps, String fileSteps, String fileStates, String fileEnvelopes) throws IOException, ContradictionException, TimeoutException {
+        testMakeSeqOfSteps(new EnvelopeFinder(wDim), wDim, numSteps, fileSteps, fileStates, fileEnvelopes);
+    }
+
+    /**
+     * Same as the previous function, but using an agent that has already been
+     * created (and maybe configured) by the caller.
+     *
+     * @param eAgent        EnvelopeFinder agent
+     * @param wDim          the dimension of world
+     * @param numSteps      num of steps to perform
+     * @param fileSteps     file name with sequence of steps to perform
+     * @param fileStates    file name with sequence of target states, that should
+     *                      be the resulting states after each movement in fileSteps
+     * @param fileEnvelopes file name with envelopes positions
+     **/
+    public void testMakeSeqOfSteps (EnvelopeFinder eAgent, int wDim, int numSteps, String fileSteps, String fileStates, String fileEnvelopes) throws IOException, ContradictionException, TimeoutException {
 
-        EnvelopeFinder eAgent = new EnvelopeFinder(wDim);
         EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(wDim, fileEnvelopes);
 
         // Load list of states
@@ -189,4 +215,748 @@ public class EnvelopeFinderTest {
         testMakeSeqOfSteps(5, 5, "tests/steps6.txt", "tests/states6.txt", "tests/envelopes6.txt");
     }
 
+    /**
+     * test4 with the formula compacted after every step.
+     * The resulting states must be the same ones obtained without compaction.
+     **/
+    @Test
+    public void envelopeWorldCompactionTest () throws IOException, ContradictionException, TimeoutException {
+        EnvelopeFinder eAgent = new EnvelopeFinder(7);
+        eAgent.setCompaction(1, 0);
+        testMakeSeqOfSteps(eAgent, 7, 12, "tests/steps4.txt", "tests/states4.txt", "tests/envelopes4.txt");
+    }
+
+    /**
+     * test2 and test4 using the compact encoding of the formula.
+     * The resulting states must be the same ones obtained with the full encoding.
+     **/
+    @Test
+    public void envelopeWorldCompactEncodingTest () throws IOException, ContradictionException, TimeoutException {
+        testMakeSeqOfSteps(new EnvelopeFinder(5, GammaEncoding.COMPACT), 5, 7, "tests/steps2.txt", "tests/states2.txt", "tests/envelopes2.txt");
+        testMakeSeqOfSteps(new EnvelopeFinder(7, GammaEncoding.COMPACT), 7, 12, "tests/steps4.txt", "tests/states4.txt", "tests/envelopes4.txt");
+    }
+
+    /**
+     * test3 and test5 using the lazy encoding of the formula, with and without compaction.
+     * The resulting states must be the same ones obtained with the full encoding.
+     **/
+    @Test
+    public void envelopeWorldLazyEncodingTest () throws IOException, ContradictionException, TimeoutException {
+        testMakeSeqOfSteps(new EnvelopeFinder(7, GammaEncoding.LAZY), 7, 6, "tests/steps3.txt", "tests/states3.txt", "tests/envelopes3.txt");
+        EnvelopeFinder eAgent = new EnvelopeFinder(5, GammaEncoding.LAZY);
+        eAgent.setCompaction(2, 0);
+        testMakeSeqOfSteps(eAgent, 5, 5, "tests/steps5.txt", "tests/states5.txt", "tests/envelopes5.txt");
+    }
+
+    /**
+     * test4 and test6 with the tiled agent, using small tiles and keeping only two
+     * of them loaded, so that evidence crosses tile borders and tiles get evicted.
+     * The knowledge about every position must be the same one of the target states.
+     **/
+    @Test
+    public void envelopeWorldTiledTest () throws IOException, ContradictionException, TimeoutException {
+        testTiledSeqOfSteps(7, 12, "tests/steps4.txt", "tests/states4.txt", "tests/envelopes4.txt");
+        testTiledSeqOfSteps(5, 5, "tests/steps6.txt", "tests/states6.txt", "tests/envelopes6.txt");
+    }
+
+    /**
+     * Run a sequence of steps with a TiledEnvelopeFinder agent (tiles of dimension 3),
+     * and check that after each step its knowledge is the one in fileStates.
+     *
+     * @param wDim          the dimension of world
+     * @param numSteps      num of steps to perform
+     * @param fileSteps     file name with sequence of steps to perform
+     * @param fileStates    file name with sequence of target states
+     * @param fileEnvelopes file name with envelopes positions
+     **/
+    public void testTiledSeqOfSteps (int wDim, int numSteps, String fileSteps, String fileStates, String fileEnvelopes) throws ContradictionException, TimeoutException {
+        TiledEnvelopeFinder tAgent = new TiledEnvelopeFinder(wDim, 3, 2);
+        tAgent.setEnvironment(new EnvelopeWorldEnv(wDim, fileEnvelopes));
+        tAgent.loadListOfSteps(numSteps, fileSteps);
+
+        for (EFState currentState : loadListOfTargetStates(wDim, numSteps, fileStates)) {
+            tAgent.runNextStep();
+            for (int i = 1; i <= wDim; i++) {
+                for (int j = 1; j <= wDim; j++) {
+                    assertEquals(currentState.matrix[i-1][j-1], tAgent.getCellState(new Position(i, j)));
+                }
+            }
+        }
+    }
+
+    /**
+     * test4 interrupted after 6 steps: a new agent restored from the checkpoint
+     * written by the first one must obtain the same states in the last 6 steps.
+     **/
+    @Test
+    public void envelopeWorldCheckpointTest () throws IOException, ContradictionException, TimeoutException {
+        File checkpointFile = File.createTempFile("eworld", ".ckpt");
+        checkpointFile.delete();
+        checkpointFile.deleteOnExit();
+        ArrayList<EFState> seqOfStates = loadListOfTargetStates(7, 12, "tests/states4.txt");
+
+        EnvelopeFinder eAgent = new EnvelopeFinder(7);
+        eAgent.setEnvironment(new EnvelopeWorldEnv(7, "tests/envelopes4.txt"));
+        eAgent.loadListOfSteps(12, "tests/steps4.txt");
+        eAgent.setCheckpoint(checkpointFile.getPath(), 4);
+        for (int i = 0; i < 6; i++) {
+            eAgent.runNextStep();
+        }
+        eAgent.closeCheckpoint();
+
+        EnvelopeFinder restoredAgent = new EnvelopeFinder(7);
+        restoredAgent.setEnvironment(new EnvelopeWorldEnv(7, "tests/envelopes4.txt"));
+        restoredAgent.loadListOfSteps(12, "tests/steps4.txt");
+        restoredAgent.restoreCheckpoint(checkpointFile.getPath());
+        testMakeSimpleStep(restoredAgent, seqOfStates.get(5));
+        for (int i = 6; i < 12; i++) {
+            restoredAgent.runNextStep();
+            testMakeSimpleStep(restoredAgent, seqOfStates.get(i));
+        }
+    }
+
+    /**
+     * test2 recorded in a message trace, and then replayed without the envelopes file.
+     * Both runs must obtain the target states.
+     **/
+    @Test
+    public void envelopeWorldTraceReplayTest () throws IOException, ContradictionException, TimeoutException {
+        File traceFile = File.createTempFile("eworld", ".trace");
+        traceFile.deleteOnExit();
+        ArrayList<EFState> seqOfStates = loadListOfTargetStates(5, 7, "tests/states2.txt");
+
+        EnvelopeFinder eAgent = new EnvelopeFinder(5);
+        EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(5, "tests/envelopes2.txt");
+        MessageTraceWriter trace = new MessageTraceWriter(traceFile.getPath(), 5);
+        envAgent.setTrace(trace);
+        eAgent.setEnvironment(envAgent);
+        eAgent.loadListOfSteps(7, "tests/steps2.txt");
+        for (EFState currentState : seqOfStates) {
+            eAgent.runNextStep();
+            testMakeSimpleStep(eAgent, currentState);
+        }
+        trace.close();
+
+        EnvelopeFinder replayAgent = new EnvelopeFinder(5);
+        replayAgent.setEnvironment(new EnvelopeWorldReplayEnv(traceFile.getPath()));
+        replayAgent.loadListOfSteps(7, "tests/steps2.txt");
+        for (EFState currentState : seqOfStates) {
+            replayAgent.runNextStep();
+            testMakeSimpleStep(replayAgent, currentState);
+        }
+    }
+
+    /**
+     * Worlds of test4 and test6 explored with the planner: it must stop once nothing
+     * else can be learned, in fewer steps than positions, without discarding any
+     * envelope position.
+     **/
+    @Test
+    public void envelopeWorldPlannerTest () throws IOException, ContradictionException, TimeoutException {
+        testPlannedSteps(7, "tests/envelopes4.txt", new Position[] { new Position(6, 2), new Position(4, 4), new Position(2, 6) });
+        testPlannedSteps(5, "tests/envelopes6.txt", new Position[] { new Position(1, 1), new Position(2, 1), new Position(2, 2), new Position(2, 3) });
+    }
+
+    /**
+     * Explore a world with the planner, and check the result
+     *
+     * @param wDim          the dimension of world
+     * @param fileEnvelopes file name with envelopes positions
+     * @param envelopes     positions of the envelopes
+     **/
+    public void testPlannedSteps (int wDim, String fileEnvelopes, Position[] envelopes) throws IOException, ContradictionException, TimeoutException {
+        EnvelopeFinder eAgent = new EnvelopeFinder(wDim);
+        eAgent.setEnvironment(new EnvelopeWorldEnv(wDim, fileEnvelopes));
+        eAgent.setPlannerMode(wDim * wDim);
+
+        int steps = 0;
+        while (!eAgent.isFullyDetermined()) {
+            eAgent.runNextStep();
+            steps++;
+        }
+        assertTrue(steps < wDim * wDim);
+        for (Position envelope : envelopes) {
+            assertEquals("?", eAgent.getState().matrix[envelope.getX()-1][envelope.getY()-1]);
+        }
+    }
+
+    /**
+     * A single envelope at (1,1): all the other positions are discarded while
+     * some neighbours of the envelope are still unvisited, and then no reading
+     * is expected to discard anything. The planner must still visit them until
+     * nothing else can be learned, and then stop.
+     **/
+    @Test
+    public void envelopeWorldPlannerSingleEnvelopeTest () throws IOException, ContradictionException, TimeoutException {
+        for (int wDim : new int[] { 3, 5 }) {
+            File envelopesFile = File.createTempFile("envelopes", ".txt");
+            envelopesFile.deleteOnExit();
+            WorldGenerator.writePositions(envelopesFile.getPath(), new ArrayList<>(Arrays.asList(new Position(1, 1))));
+            EnvelopeFinder eAgent = new EnvelopeFinder(wDim);
+            eAgent.setEnvironment(new EnvelopeWorldEnv(wDim, envelopesFile.getPath()));
+            eAgent.setPlannerMode(wDim * wDim);
+
+            int steps = 0;
+            while (eAgent.hasNextStep()) {
+                assertTrue(steps < wDim * wDim);
+                eAgent.runNextStep();
+                steps++;
+            }
+            assertTrue(eAgent.isFullyDetermined());
+            assertEquals(null, eAgent.planNextStep());
+            assertEquals(wDim * wDim - 1, eAgent.getState().countDiscarded());
+            assertEquals("?", eAgent.getState().matrix[0][0]);
+        }
+    }
+
+    /**
+     * test4 and test5 in pipelined mode.
+     * The resulting states must be the same ones obtained in sequential mode.
+     **/
+    @Test
+    public void envelopeWorldPipelinedTest () throws IOException, ContradictionException, TimeoutException {
+        EnvelopeFinder eAgent = new EnvelopeFinder(7);
+        eAgent.setPipelined(true);
+        testMakeSeqOfSteps(eAgent, 7, 12, "tests/steps4.txt", "tests/states4.txt", "tests/envelopes4.txt");
+        eAgent = new EnvelopeFinder(5);
+        eAgent.setPipelined(true);
+        testMakeSeqOfSteps(eAgent, 5, 5, "tests/steps5.txt", "tests/states5.txt", "tests/envelopes5.txt");
+    }
+
+    /**
+     * test4 with a budget of 10 SAT calls per step. After every step the agent can
+     * only know part of the target state, and once the pending work is finished it
+     * must reach the final target state.
+     **/
+    @Test
+    public void envelopeWorldAnytimeTest () throws IOException, ContradictionException, TimeoutException {
+        ArrayList<EFState> seqOfStates = loadListOfTargetStates(7, 12, "tests/states4.txt");
+        EnvelopeFinder eAgent = new EnvelopeFinder(7);
+        eAgent.setInferenceBudget(0, 10);
+        eAgent.setEnvironment(new EnvelopeWorldEnv(7, "tests/envelopes4.txt"));
+        eAgent.loadListOfSteps(12, "tests/steps4.txt");
+
+        for (EFState currentState : seqOfStates) {
+            eAgent.runNextStep();
+            for (int i = 0; i < 7; i++) {
+                for (int j = 0; j < 7; j++) {
+                    if (eAgent.getState().matrix[i][j].equals("X")) {
+                        assertEquals("X", currentState.matrix[i][j]);
+                    }
+                }
+            }
+        }
+        while (!eAgent.isInferenceComplete()) {
+            eAgent.performInferenceQuestions();
+        }
+        testMakeSimpleStep(eAgent, seqOfStates.get(11));
+    }
+
+    /**
+     * Statistics of a run: every step is recorded, the number of discarded
+     * positions matches the final state, and the latency percentiles are
+     * ordered and bounded by the maximum.
+     **/
+    @Test
+    public void envelopeWorldStatisticsTest () throws IOException, ContradictionException, TimeoutException {
+        EnvelopeFinder eAgent = new EnvelopeFinder(7);
+        eAgent.setEnvironment(new EnvelopeWorldEnv(7, "tests/envelopes4.txt"));
+        eAgent.loadListOfSteps(12, "tests/steps4.txt");
+        RunStatistics stats = new RunStatistics(eAgent);
+        for (int i = 0; i < 12; i++) {
+            eAgent.runNextStep();
+            stats.recordStep(eAgent);
+        }
+
+        int discarded = 0;
+        for (int i = 0; i < 7; i++) {
+            for (int j = 0; j < 7; j++) {
+                if (eAgent.getState().matrix[i][j].equals("X")) {
+                    discarded++;
+                }
+            }
+        }
+        assertEquals(12, stats.stepLatency.getCount());
+        assertEquals(discarded, stats.discardedPositions);
+        assertTrue(stats.satCalls > 0);
+        LatencyHistogram step = stats.stepLatency;
+        assertTrue(step.percentile(0.5) <= step.percentile(0.99));
+        assertTrue(step.percentile(0.99) <= step.getMax());
+
+        File report = File.createTempFile("stats", ".csv");
+        report.deleteOnExit();
+        stats.writeReport(report.getPath());
+        assertEquals(1 + EnvelopeFinder.PHASE_NAMES.length,
+                java.nio.file.Files.readAllLines(report.toPath()).size() - 1);
+    }
+
+    /**
+     * Frame export: every exported frame, read in any order, must be the state
+     * of knowledge after the corresponding step
+     **/
+    @Test
+    public void envelopeWorldFrameExportTest () throws IOException, ContradictionException, TimeoutException {
+        ArrayList<EFState> seqOfStates = loadListOfTargetStates(7, 12, "tests/states4.txt");
+        File frames = File.createTempFile("frames", ".eff");
+        frames.deleteOnExit();
+        new File(frames.getPath() + EFStateFrameWriter.INDEX_SUFFIX).deleteOnExit();
+
+        EnvelopeFinder eAgent = new EnvelopeFinder(7);
+        eAgent.setEnvironment(new EnvelopeWorldEnv(7, "tests/envelopes4.txt"));
+        eAgent.loadListOfSteps(12, "tests/steps4.txt");
+        eAgent.setFrameExport(frames.getPath(), 4);
+        for (int i = 0; i < 12; i++) {
+            eAgent.runNextStep();
+        }
+        eAgent.closeFrameExport();
+
+        EFStateFrameReader reader = new EFStateFrameReader(frames.getPath());
+        assertEquals(13, reader.getNumFrames());
+        assertEquals(new EFState(7), reader.readFrame(0));
+        int[] order = { 12, 5, 6, 7, 1, 11, 3, 8, 2, 10, 4, 9 };
+        for (int step : order) {
+            assertEquals(seqOfStates.get(step - 1), reader.readFrame(step));
+        }
+        reader.close();
+    }
+
+    /**
+     * Cooperative team: the steps of tests/steps4.txt split among three scouts
+     * must discard the same positions as a single agent performing all of them
+     **/
+    @Test
+    public void envelopeWorldCooperativeTest () throws IOException, ContradictionException, TimeoutException {
+        ArrayList<EFState> seqOfStates = loadListOfTargetStates(7, 12, "tests/states4.txt");
+        ArrayList<Position> steps = EnvelopeFinder.readListOfSteps(12, "tests/steps4.txt");
+
+        CooperativeFinder team = new CooperativeFinder(7, GammaEncoding.FULL,
+                new EnvelopeWorldEnv(7, "tests/envelopes4.txt"));
+        for (int s = 0; s < 3; s++) {
+            ArrayList<Position> scoutSteps = new ArrayList<>();
+            for (int i = s; i < steps.size(); i += 3) {
+                scoutSteps.add(steps.get(i));
+            }
+            File stepsFile = File.createTempFile("scout", ".txt");
+            stepsFile.deleteOnExit();
+            WorldGenerator.writePositions(stepsFile.getPath(), scoutSteps);
+            team.addScout(scoutSteps.size(), stepsFile.getPath());
+        }
+        team.setInferenceInterval(2);
+        int rounds = 0;
+        while (team.hasNextRound()) {
+            team.runNextRound();
+            rounds++;
+        }
+        team.close();
+
+        assertEquals(4, rounds);
+        assertEquals(seqOfStates.get(11), team.getState());
+        assertEquals(seqOfStates.get(11), team.getKnowledge().getState());
+    }
+
+    /**
+     * Cooperative team: an inference with no new reading (none drained, or only
+     * readings at positions already sensed) doesn't call the solver nor add
+     * the readings again
+     **/
+    @Test
+    public void evidenceStepSkipsKnownReadingsTest () throws IOException, ContradictionException, TimeoutException {
+        EnvelopeWorldEnv env = new EnvelopeWorldEnv(7, "tests/envelopes4.txt");
+        EnvelopeFinder coordinator = new EnvelopeFinder(7);
+        coordinator.setEnvironment(env);
+        // Without witness models, every position not discarded costs a SAT call
+        coordinator.setMaxWitnessModels(0);
+        AMessage reading = env.acceptMessage(new AMessage("detectsat", "3", "3", ""));
+        coordinator.runEvidenceStep(new ArrayList<>(Arrays.asList(reading, reading)));
+        assertEquals(1, coordinator.sensorEvidence.size());
+        assertTrue(coordinator.lastConclusions.size() > 0);
+        EFState state = coordinator.getState();
+        long satCalls = coordinator.numSatCalls;
+
+        coordinator.runEvidenceStep(new ArrayList<>());
+        assertEquals(satCalls, coordinator.numSatCalls);
+        assertEquals(0, coordinator.lastConclusions.size());
+        int formulaSize = coordinator.solver.nConstraints();
+
+        coordinator.runEvidenceStep(new ArrayList<>(Arrays.asList(reading)));
+        assertEquals(satCalls, coordinator.numSatCalls);
+        assertEquals(formulaSize, coordinator.solver.nConstraints());
+        assertEquals(1, coordinator.sensorEvidence.size());
+        assertEquals(0, coordinator.lastConclusions.size());
+        assertEquals(state, coordinator.getState());
+    }
+
+    /**
+     * Sensor readings: the eight readings round trip through their mask and text
+     * form, and a "123" reading (that discards nothing) is accepted by all the
+     * encodings without losing the conclusions of the other readings
+     **/
+    @Test
+    public void sensorReadingTest () throws IOException, ContradictionException, TimeoutException {
+        for (int mask = 0; mask < 8; mask++) {
+            SensorReading reading = SensorReading.of(mask);
+            assertEquals(mask, reading.getMask());
+            assertTrue(reading == SensorReading.parse(reading.toString()));
+        }
+        assertEquals("123", SensorReading.ALL.toString());
+        assertEquals(0, SensorReading.ALL.getForbiddenPositions(new Position(2, 2)).size());
+        assertEquals(9, SensorReading.NONE.getForbiddenPositions(new Position(2, 2)).size());
+
+        File envelopesFile = File.createTempFile("envelopes", ".txt");
+        envelopesFile.deleteOnExit();
+        WorldGenerator.writePositions(envelopesFile.getPath(),
+                new ArrayList<>(Arrays.asList(new Position(2, 2), new Position(2, 3), new Position(3, 3))));
+        File stepsFile = File.createTempFile("steps", ".txt");
+        stepsFile.deleteOnExit();
+        WorldGenerator.writePositions(stepsFile.getPath(),
+                new ArrayList<>(Arrays.asList(new Position(2, 2), new Position(5, 5))));
+
+        for (GammaEncoding encoding : GammaEncoding.values()) {
+            EnvelopeWorldEnv env = new EnvelopeWorldEnv(5, envelopesFile.getPath());
+            assertEquals("123", env.getSensorsOutput(new Position(2, 2)));
+            EnvelopeFinder eAgent = new EnvelopeFinder(5, encoding);
+            eAgent.setEnvironment(env);
+            eAgent.loadListOfSteps(2, stepsFile.getPath());
+            eAgent.runNextStep();
+            eAgent.runNextStep();
+            EFState state = eAgent.getState();
+            assertEquals("?", state.matrix[1][1]);
+            assertEquals("?", state.matrix[1][2]);
+            assertEquals("?", state.matrix[2][2]);
+            assertEquals("X", state.matrix[4][4]);
+            assertEquals("X", state.matrix[3][3]);
+        }
+    }
+
+    /**
+     * What-if queries: before every step, the state predicted for the reading
+     * the agent is about to get must be the state it reaches after the step,
+     * the queries must not change the agent, and a reading that contradicts
+     * the knowledge must be rejected
+     **/
+    @Test
+    public void whatIfTest () throws IOException, ContradictionException, TimeoutException {
+        ArrayList<EFState> seqOfStates = loadListOfTargetStates(7, 12, "tests/states4.txt");
+
+        for (GammaEncoding encoding : GammaEncoding.values()) {
+            EnvelopeWorldEnv env = new EnvelopeWorldEnv(7, "tests/envelopes4.txt");
+            EnvelopeFinder eAgent = new EnvelopeFinder(7, encoding);
+            if (encoding == GammaEncoding.COMPACT) {
+                eAgent.setEnvelopeCount(3, true);
+            }
+            eAgent.setEnvironment(env);
+            eAgent.loadListOfSteps(12, "tests/steps4.txt");
+
+            for (int step = 0; step < 12; step++) {
+                Position next = eAgent.listOfSteps.get(step);
+                // Other hypotheses first, to check that they leave no trace
+                for (int mask = 0; mask < 8; mask++) {
+                    eAgent.whatIf(next.x, next.y, SensorReading.of(mask));
+                }
+                EFState predicted = eAgent.whatIf(next.x, next.y, env.getSensorReading(next));
+                eAgent.runNextStep();
+                assertEquals(predicted, eAgent.getState());
+                if (encoding != GammaEncoding.COMPACT) {
+                    assertEquals(seqOfStates.get(step), eAgent.getState());
+                }
+            }
+            if (encoding == GammaEncoding.COMPACT) {
+                // With the count, a detection at a discarded position is a contradiction
+                assertEquals("X", eAgent.getState().matrix[0][0]);
+                assertEquals(null, eAgent.whatIf(1, 1, SensorReading.parse("3")));
+            }
+        }
+    }
+
+    /**
+     * Region queries: after every step, the rectangle counts of the summed-area
+     * index must match a scan of the matrix, and the top regions must be the
+     * blocks with most unknown positions
+     **/
+    @Test
+    public void regionQueriesTest () throws IOException, ContradictionException, TimeoutException {
+        EnvelopeFinder eAgent = new EnvelopeFinder(7);
+        eAgent.setEnvironment(new EnvelopeWorldEnv(7, "tests/envelopes4.txt"));
+        eAgent.loadListOfSteps(12, "tests/steps4.txt");
+        EFState state = eAgent.getState();
+        assertEquals(49, state.countUnknown(1, 1, 7, 7));
+
+        for (int step = 0; step < 12; step++) {
+            eAgent.runNextStep();
+            for (int x1 = 0; x1 <= 8; x1 += 2) {
+                for (int y1 = 1; y1 <= 7; y1 += 3) {
+                    for (int x2 = x1; x2 <= 8; x2 += 3) {
+                        for (int y2 = y1; y2 <= 7; y2 += 2) {
+                            int count = 0;
+                            for (int i = Math.max(x1, 1); i <= Math.min(x2, 7); i++) {
+                                for (int j = y1; j <= y2; j++) {
+                                    if (!state.matrix[i-1][j-1].equals("X")) {
+                                        count++;
+                                    }
+                                }
+                            }
+                            assertEquals(count, state.countUnknown(x1, y1, x2, y2));
+                        }
+                    }
+                }
+            }
+        }
+
+        ArrayList<Position> regions = state.topCandidateRegions(3, 2);
+        assertTrue(regions.size() <= 2);
+        int previous = Integer.MAX_VALUE;
+        for (Position region : regions) {
+            int count = state.countUnknown(region.x, region.y, region.x + 2, region.y + 2);
+            assertTrue(count > 0 && count <= previous);
+            previous = count;
+        }
+        for (int x = 1; x <= 7; x += 3) {
+            for (int y = 1; y <= 7; y += 3) {
+                Position block = new Position(x, y);
+                if (!regions.contains(block) && regions.size() == 2) {
+                    assertTrue(state.countUnknown(x, y, x + 2, y + 2) <= previous);
+                }
+            }
+        }
+    }
+
+    /**
+     * Inference cache: a second run of the same steps is served from the cache,
+     * a run that diverges after some steps resumes solving at the divergence,
+     * and the memory bound is kept by evicting results
+     **/
+    @Test
+    public void inferenceCacheTest () throws IOException, ContradictionException, TimeoutException {
+        ArrayList<EFState> seqOfStates = loadListOfTargetStates(7, 12, "tests/states4.txt");
+        InferenceCache cache = new InferenceCache(1 << 20);
+
+        for (int run = 0; run < 2; run++) {
+            EnvelopeFinder eAgent = new EnvelopeFinder(7, GammaEncoding.LAZY);
+            eAgent.setInferenceCache(cache);
+            testMakeSeqOfSteps(eAgent, 7, 12, "tests/steps4.txt", "tests/states4.txt", "tests/envelopes4.txt");
+        }
+        assertEquals(12, cache.getHits());
+        assertEquals(12, cache.getMisses());
+
+        // Same first 6 steps, and then the steps of tests/steps4.txt in reverse order
+        ArrayList<Position> steps = EnvelopeFinder.readListOfSteps(12, "tests/steps4.txt");
+        ArrayList<Position> divergent = new ArrayList<>(steps.subList(0, 6));
+        for (int i = 11; i >= 6; i--) {
+            divergent.add(steps.get(i));
+        }
+        File stepsFile = File.createTempFile("steps", ".txt");
+        stepsFile.deleteOnExit();
+        WorldGenerator.writePositions(stepsFile.getPath(), divergent);
+
+        EnvelopeFinder cached = new EnvelopeFinder(7);
+        cached.setInferenceCache(cache);
+        cached.setEnvironment(new EnvelopeWorldEnv(7, "tests/envelopes4.txt"));
+        cached.loadListOfSteps(12, stepsFile.getPath());
+        EnvelopeFinder plain = new EnvelopeFinder(7);
+        plain.setEnvironment(new EnvelopeWorldEnv(7, "tests/envelopes4.txt"));
+        plain.loadListOfSteps(12, stepsFile.getPath());
+        for (int i = 0; i < 12; i++) {
+            cached.runNextStep();
+            plain.runNextStep();
+            assertEquals(plain.getState(), cached.getState());
+        }
+        assertEquals(12 + 6, cache.getHits());
+        assertEquals(seqOfStates.get(11), cached.getState());
+
+        // A bound of three nodes
+        InferenceCache small = new InferenceCache(3 * InferenceCache.nodeBytes(
+                new InferenceCache.Node(null, 0, new BitSet(49))));
+        EnvelopeFinder bounded = new EnvelopeFinder(7);
+        bounded.setInferenceCache(small);
+        testMakeSeqOfSteps(bounded, 7, 12, "tests/steps4.txt", "tests/states4.txt", "tests/envelopes4.txt");
+        assertTrue(small.getUsedBytes() <= small.maxBytes);
+    }
+
+    /**
+     * The memory-mapped knowledge store only maps the regions it uses, keeps
+     * its positions across restarts, and can back TiledEnvelopeFinder
+     **/
+    @Test
+    public void mappedKnowledgeStoreTest () throws IOException, ContradictionException, TimeoutException {
+        File storeFile = File.createTempFile("eworld", ".store");
+        storeFile.delete();
+        storeFile.deleteOnExit();
+        try (MappedKnowledgeStore store = new MappedKnowledgeStore(storeFile.getPath(), 1000, 4096)) {
+            store.markDiscarded(1, 1);
+            store.markDiscarded(1000, 1000);
+            store.markDiscarded(1000, 1000);
+            assertEquals(2, store.countDiscarded());
+            assertEquals(2, store.getMappedRegions());
+        }
+        try (MappedKnowledgeStore store = new MappedKnowledgeStore(storeFile.getPath(), 1000)) {
+            assertTrue(store.isDiscarded(1, 1));
+            assertTrue(store.isDiscarded(1000, 1000));
+            assertFalse(store.isDiscarded(1, 2));
+            assertEquals(2, store.countDiscarded());
+        }
+        try {
+            new MappedKnowledgeStore(storeFile.getPath(), 999).close();
+            fail("A store of another dimension must not be opened");
+        } catch (IOException expected) {
+        }
+        storeFile.delete();
+
+        ArrayList<EFState> seqOfStates = loadListOfTargetStates(7, 12, "tests/states4.txt");
+        // Tiles evicted to the store
+        TiledEnvelopeFinder tAgent = new TiledEnvelopeFinder(7, 3, 2);
+        try (MappedKnowledgeStore store = new MappedKnowledgeStore(storeFile.getPath(), 7)) {
+            tAgent.setKnowledgeStore(store);
+            tAgent.setEnvironment(new EnvelopeWorldEnv(7, "tests/envelopes4.txt"));
+            tAgent.loadListOfSteps(12, "tests/steps4.txt");
+            for (EFState currentState : seqOfStates) {
+                tAgent.runNextStep();
+                for (int i = 1; i <= 7; i++) {
+                    for (int j = 1; j <= 7; j++) {
+                        assertEquals(currentState.matrix[i-1][j-1], tAgent.getCellState(new Position(i, j)));
+                    }
+                }
+            }
+            tAgent.flush();
+            assertEquals(seqOfStates.get(11).countDiscarded(), store.countDiscarded());
+        }
+
+        // A tiled agent restarted with the store of the previous run
+        TiledEnvelopeFinder restarted = new TiledEnvelopeFinder(7, 3, 2);
+        try (MappedKnowledgeStore store = new MappedKnowledgeStore(storeFile.getPath(), 7)) {
+            restarted.setKnowledgeStore(store);
+            assertEquals(49 - seqOfStates.get(11).countDiscarded(), restarted.getNumUnknownPositions());
+            for (int i = 1; i <= 7; i++) {
+                for (int j = 1; j <= 7; j++) {
+                    assertEquals(seqOfStates.get(11).matrix[i-1][j-1], restarted.getCellState(new Position(i, j)));
+                }
+            }
+        }
+    }
+
+
+    /**
+     * The step publisher only performs the steps requested by its subscriber,
+     * and its results give the same states as running the steps directly
+     **/
+    @Test
+    public void stepPublisherTest () throws Exception {
+        ArrayList<EFState> seqOfStates = loadListOfTargetStates(7, 12, "tests/states4.txt");
+        EnvelopeFinder eAgent = new EnvelopeFinder(7);
+        eAgent.setEnvironment(new EnvelopeWorldEnv(7, "tests/envelopes4.txt"));
+        eAgent.loadListOfSteps(12, "tests/steps4.txt");
+
+        ArrayList<StepResult> results = new ArrayList<>();
+        ArrayList<Flow.Subscription> subscription = new ArrayList<>();
+        ArrayList<Throwable> errors = new ArrayList<>();
+        AtomicBoolean completed = new AtomicBoolean();
+        // Steps performed in the thread that requests them
+        StepPublisher publisher = new StepPublisher(eAgent, Runnable::run);
+        publisher.subscribe(new Flow.Subscriber<StepResult>() {
+            public void onSubscribe(Flow.Subscription s) { subscription.add(s); }
+            public void onNext(StepResult result) { results.add(result); }
+            public void onError(Throwable error) { errors.add(error); }
+            public void onComplete() { completed.set(true); }
+        });
+        assertEquals(0, eAgent.idNextStep);
+
+        EFState state = new EFState(7);
+        for (int i = 0; i < 3; i++) {
+            subscription.get(0).request(1);
+            assertEquals(i + 1, eAgent.idNextStep);
+            assertEquals(i + 1, results.size());
+            StepResult result = results.get(i);
+            assertEquals(i + 1, result.getStep());
+            for (Position pos : result.getNewConclusions()) {
+                state.set(pos.x, pos.y, "X");
+            }
+            assertEquals(seqOfStates.get(i), state);
+        }
+        assertEquals(SensorReading.NONE, results.get(0).getReading());
+        assertFalse(completed.get());
+        subscription.get(0).request(Long.MAX_VALUE);
+        assertTrue(completed.get());
+        assertTrue(errors.isEmpty());
+        assertEquals(12, results.size());
+        for (StepResult result : results) {
+            for (Position pos : result.getNewConclusions()) {
+                state.set(pos.x, pos.y, "X");
+            }
+        }
+        assertEquals(seqOfStates.get(11), state);
+
+        // A second subscriber is rejected
+        publisher.subscribe(new Flow.Subscriber<StepResult>() {
+            public void onSubscribe(Flow.Subscription s) { }
+            public void onNext(StepResult result) { }
+            public void onError(Throwable error) { errors.add(error); }
+            public void onComplete() { }
+        });
+        assertEquals(1, errors.size());
+
+        // Asynchronous steps, requested one by one
+        CountDownLatch done = new CountDownLatch(1);
+        ConcurrentLinkedQueue<StepResult> asyncResults = new ConcurrentLinkedQueue<>();
+        EnvelopeWorld.publishStepsSequence(7, 12, "tests/steps4.txt", "tests/envelopes4.txt").subscribe(
+            new Flow.Subscriber<StepResult>() {
+                Flow.Subscription s;
+                public void onSubscribe(Flow.Subscription sub) { s = sub; s.request(1); }
+                public void onNext(StepResult result) { asyncResults.add(result); s.request(1); }
+                public void onError(Throwable error) { done.countDown(); }
+                public void onComplete() { done.countDown(); }
+            });
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        assertEquals(12, asyncResults.size());
+    }
+
+
+    /**
+     * Revisits and failed moves don't ask the environment for readings already
+     * known, nor call the solver, and reach the same state
+     **/
+    @Test
+    public void revisitSkipTest () throws IOException, ContradictionException, TimeoutException {
+        ArrayList<EFState> seqOfStates = loadListOfTargetStates(7, 12, "tests/states4.txt");
+        ArrayList<Position> steps = EnvelopeFinder.readListOfSteps(12, "tests/steps4.txt");
+        // Every step followed by a revisit of the first position and a move out of the world
+        ArrayList<Position> tour = new ArrayList<>();
+        for (Position pos : steps) {
+            tour.add(pos);
+            tour.add(steps.get(0));
+            tour.add(new Position(9, 9));
+        }
+        File stepsFile = File.createTempFile("steps", ".txt");
+        stepsFile.deleteOnExit();
+        WorldGenerator.writePositions(stepsFile.getPath(), tour);
+
+        EnvelopeFinder plain = new EnvelopeFinder(7);
+        testMakeSeqOfSteps(plain, 7, 12, "tests/steps4.txt", "tests/states4.txt", "tests/envelopes4.txt");
+
+        for (boolean pipelined : new boolean[] { false, true }) {
+            int[] detections = new int[1];
+            EnvelopeWorldEnv env = new EnvelopeWorldEnv(7, "tests/envelopes4.txt") {
+                @Override
+                public AMessage acceptMessage(AMessage msg) {
+                    if (msg.getComp(0).equals("detectsat")) {
+                        detections[0]++;
+                    }
+                    return super.acceptMessage(msg);
+                }
+            };
+            EnvelopeFinder eAgent = new EnvelopeFinder(7);
+            eAgent.setEnvironment(env);
+            eAgent.loadListOfSteps(tour.size(), stepsFile.getPath());
+            eAgent.setPipelined(pipelined);
+            for (int i = 0; i < tour.size(); i++) {
+                eAgent.runNextStep();
+                assertEquals(seqOfStates.get(i / 3), eAgent.getState());
+                if (i % 3 != 0) {
+                    assertTrue(eAgent.lastConclusions.isEmpty());
+                }
+            }
+            eAgent.setPipelined(false);
+            assertEquals(12, detections[0]);
+            assertEquals(plain.numSatCalls, eAgent.numSatCalls);
+        }
+    }
+
 }
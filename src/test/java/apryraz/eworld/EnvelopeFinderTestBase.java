@@ -0,0 +1,81 @@
+package apryraz.eworld;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+import org.junit.*;
+
+/**
+ * Base class of the tests that run EnvelopeFinder agents: the standard output
+ * is silenced during every test, and the agents of test4 and of the worlds
+ * written into temporary files are built in the same way by all of them
+ **/
+public abstract class EnvelopeFinderTestBase {
+
+    /**
+     * Standard output, that is replaced by an empty stream during the tests
+     */
+    PrintStream stdout;
+
+    @Before
+    public void silenceOutput() {
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @After
+    public void restoreOutput() {
+        System.setOut(stdout);
+    }
+
+    /**
+     * Get an agent of test4 (7x7 world, 12 steps) ready to step
+     **/
+    EnvelopeFinder newAgent() {
+        return newAgent(GammaEncoding.FULL);
+    }
+
+    /**
+     * Get an agent of test4 (7x7 world, 12 steps) ready to step
+     *
+     * @param encoding encoding of the formula of the agent
+     **/
+    EnvelopeFinder newAgent(GammaEncoding encoding) {
+        EnvelopeFinder eAgent = new EnvelopeFinder(7, encoding);
+        eAgent.setEnvironment(new EnvelopeWorldEnv(7, "tests/envelopes4.txt"));
+        eAgent.loadListOfSteps(12, "tests/steps4.txt");
+        return eAgent;
+    }
+
+    /**
+     * Get an agent of a world given by its envelopes and steps, ready to step
+     *
+     * @param wDim      dimension of the world
+     * @param encoding  encoding of the formula of the agent
+     * @param envelopes positions of the envelopes
+     * @param steps     sequence of steps to perform
+     **/
+    EnvelopeFinder newAgent(int wDim, GammaEncoding encoding, ArrayList<Position> envelopes,
+                            ArrayList<Position> steps) throws IOException {
+        EnvelopeFinder eAgent = new EnvelopeFinder(wDim, encoding);
+        eAgent.setEnvironment(new EnvelopeWorldEnv(wDim, writeTempFile(envelopes).getPath()));
+        eAgent.loadListOfSteps(steps.size(), writeTempFile(steps).getPath());
+        return eAgent;
+    }
+
+    /**
+     * Write a list of positions into a temporary file
+     *
+     * @param positions the list of positions
+     * @return the file
+     **/
+    File writeTempFile(ArrayList<Position> positions) throws IOException {
+        File file = File.createTempFile("eworld", ".txt");
+        file.deleteOnExit();
+        WorldGenerator.writePositions(file.getPath(), positions);
+        return file;
+    }
+}
@@ -0,0 +1,191 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+import org.sat4j.specs.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.*;
+
+/**
+ * Class for testing the cache of inference results shared by EnvelopeFinder agents
+ **/
+public class InferenceCacheTest extends EnvelopeFinderTestBase {
+
+    /**
+     * Get an agent of test4 (7x7 world) ready to step, without the step with
+     * index skip of tests/steps4.txt (no step skipped if it is negative)
+     **/
+    EnvelopeFinder newAgent(InferenceCache cache, int skip) {
+        EnvelopeFinder eAgent = newAgent();
+        if (cache != null) {
+            eAgent.setInferenceCache(cache);
+        }
+        if (skip >= 0) {
+            eAgent.listOfSteps.remove(skip);
+            eAgent.numMovements--;
+        }
+        return eAgent;
+    }
+
+    /**
+     * A step performed with a budget is not in the cache, so the agent must stop
+     * using it: otherwise the results of the next steps would be stored as if
+     * that step had not been performed, and served to the runs that really
+     * skip it
+     **/
+    @Test
+    public void budgetedStepLeavesCacheTest () throws IOException, ContradictionException, TimeoutException {
+        InferenceCache cache = new InferenceCache(1 << 20);
+        EnvelopeFinder budgeted = newAgent(cache, -1);
+        for (int i = 0; i < 3; i++) {
+            budgeted.runNextStep();
+        }
+        budgeted.setInferenceBudget(0, 1000);
+        budgeted.runNextStep();
+        assertNull(budgeted.cacheCursor);
+        budgeted.setInferenceBudget(0, 0);
+        while (budgeted.hasNextStep()) {
+            budgeted.runNextStep();
+        }
+        assertEquals(finalState(), budgeted.getState());
+        assertEquals(3, cache.getMisses());
+
+        // Same steps without the fourth one: the first three come from the cache
+        EnvelopeFinder cached = newAgent(cache, 3);
+        EnvelopeFinder plain = newAgent(null, 3);
+        while (plain.hasNextStep()) {
+            cached.runNextStep();
+            plain.runNextStep();
+            assertEquals(plain.getState(), cached.getState());
+        }
+        assertEquals(3, cache.getHits());
+    }
+
+    /**
+     * Every symmetry is undone by its inverse, on single positions and on sets
+     **/
+    @Test
+    public void symmetryInverseTest () {
+        BitSet positions = new BitSet();
+        positions.set(1);
+        positions.set(9);
+        positions.set(30);
+        for (int s = 0; s < GridSymmetry.NUM_SYMMETRIES; s++) {
+            int inv = GridSymmetry.inverse(s);
+            for (int x = 1; x <= 7; x++) {
+                for (int y = 1; y <= 7; y++) {
+                    int ix = GridSymmetry.imageX(s, x, y, 7);
+                    int iy = GridSymmetry.imageY(s, x, y, 7);
+                    assertEquals(x, GridSymmetry.imageX(inv, ix, iy, 7));
+                    assertEquals(y, GridSymmetry.imageY(inv, ix, iy, 7));
+                }
+            }
+            assertEquals(positions, GridSymmetry.image(inv, GridSymmetry.image(s, positions, 7), 7));
+        }
+    }
+
+    /**
+     * A step stored once is found from its eight symmetric images, and the
+     * result comes back mapped to the coordinates of each image. Without
+     * symmetries, only the same step is found.
+     **/
+    @Test
+    public void symmetricLookupTest () {
+        SensorReading reading = SensorReading.parse("1");
+        BitSet discarded = new BitSet();
+        discarded.set(1);
+        discarded.set(9);
+        for (boolean symmetries : new boolean[] { true, false }) {
+            InferenceCache cache = new InferenceCache(1 << 20, symmetries);
+            InferenceCache.Cursor cursor = cache.start(7, 0, false);
+            assertNull(cache.lookup(cursor, 2, 3, reading));
+            cache.insert(cursor, discarded);
+
+            for (int s = 0; s < GridSymmetry.NUM_SYMMETRIES; s++) {
+                int x = GridSymmetry.imageX(s, 2, 3, 7);
+                int y = GridSymmetry.imageY(s, 2, 3, 7);
+                BitSet result = cache.lookup(cache.start(7, 0, false), x, y, reading);
+                if (symmetries || s == 0) {
+                    assertEquals(GridSymmetry.image(s, discarded, 7), result);
+                } else {
+                    assertNull(result);
+                }
+            }
+            // Another reading at the same position is another step
+            assertNull(cache.lookup(cache.start(7, 0, false), 2, 3, SensorReading.parse("2")));
+            assertEquals(symmetries ? 8 : 1, cache.getHits());
+            assertEquals(symmetries ? 2 : 9, cache.getMisses());
+        }
+    }
+
+    /**
+     * The eight symmetric copies of test4 are all served from the results of
+     * the first one: each copy after the first hits the cache in all its
+     * steps, makes no SAT call, and gets the same states as solving it directly
+     **/
+    @Test
+    public void symmetricScenariosTest () throws IOException, ContradictionException, TimeoutException {
+        InferenceCache cache = new InferenceCache(1 << 20);
+        for (int s = 0; s < GridSymmetry.NUM_SYMMETRIES; s++) {
+            EnvelopeFinder cached = newSymmetricAgent(cache, s);
+            EnvelopeFinder plain = newSymmetricAgent(null, s);
+            for (int i = 0; i < 12; i++) {
+                cached.runNextStep();
+                plain.runNextStep();
+                assertEquals(plain.getState(), cached.getState());
+            }
+            assertEquals(12, cache.getMisses());
+            assertEquals(12 * s, cache.getHits());
+            if (s > 0) {
+                assertEquals(0, cached.numSatCalls);
+            }
+        }
+
+        // Without symmetries, a rotated copy is solved again
+        InferenceCache plainCache = new InferenceCache(1 << 20, false);
+        for (int s : new int[] { 0, GridSymmetry.SWAP | GridSymmetry.FLIP_X }) {
+            EnvelopeFinder cached = newSymmetricAgent(plainCache, s);
+            for (int i = 0; i < 12; i++) {
+                cached.runNextStep();
+            }
+        }
+        assertEquals(24, plainCache.getMisses());
+        assertEquals(0, plainCache.getHits());
+    }
+
+    /**
+     * Get an agent of the image of test4 (7x7 world, compact encoding) by a
+     * symmetry, ready to step
+     **/
+    EnvelopeFinder newSymmetricAgent(InferenceCache cache, int s) throws IOException {
+        ArrayList<Position> steps = new ArrayList<>();
+        for (Position p : EnvelopeFinder.readListOfSteps(12, "tests/steps4.txt")) {
+            steps.add(new Position(GridSymmetry.imageX(s, p.x, p.y, 7), GridSymmetry.imageY(s, p.x, p.y, 7)));
+        }
+        ArrayList<Position> envelopes = new ArrayList<>();
+        for (Position p : new Position[] { new Position(6, 2), new Position(4, 4), new Position(2, 6) }) {
+            envelopes.add(new Position(GridSymmetry.imageX(s, p.x, p.y, 7), GridSymmetry.imageY(s, p.x, p.y, 7)));
+        }
+        EnvelopeFinder eAgent = newAgent(7, GammaEncoding.COMPACT, envelopes, steps);
+        if (cache != null) {
+            eAgent.setInferenceCache(cache);
+        }
+        return eAgent;
+    }
+
+    /**
+     * Get the final state of an agent of test4 without cache
+     **/
+    EFState finalState() throws IOException, ContradictionException, TimeoutException {
+        EnvelopeFinder eAgent = newAgent(null, -1);
+        while (eAgent.hasNextStep()) {
+            eAgent.runNextStep();
+        }
+        return eAgent.getState();
+    }
+}
@@ -0,0 +1,71 @@
+package apryraz.eworld;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Locale;
+
+import org.sat4j.specs.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.*;
+
+/**
+ * Class for testing the reports of RunStatistics
+ **/
+public class RunStatisticsTest extends EnvelopeFinderTestBase {
+
+    /**
+     * Default locale, replaced during the tests
+     */
+    Locale locale;
+
+    @Before
+    public void saveLocale() {
+        locale = Locale.getDefault();
+    }
+
+    @After
+    public void restoreLocale() {
+        Locale.setDefault(locale);
+    }
+
+    /**
+     * The machine readable reports use a decimal point whatever the default
+     * locale, so a comma-decimal locale doesn't add CSV columns nor break the JSON
+     **/
+    @Test
+    public void reportLocaleTest () throws IOException, ContradictionException, TimeoutException {
+        Locale.setDefault(new Locale("es", "ES"));
+        EnvelopeFinder eAgent = newAgent();
+        RunStatistics stats = new RunStatistics(eAgent);
+        for (int i = 0; i < 12; i++) {
+            eAgent.runNextStep();
+            stats.recordStep(eAgent);
+        }
+
+        File csv = File.createTempFile("stats", ".csv");
+        csv.deleteOnExit();
+        stats.writeReport(csv.getPath());
+        List<String> rows = Files.readAllLines(csv.toPath());
+        int columns = rows.get(0).split(",").length;
+        for (String row : rows) {
+            assertEquals(columns, row.split(",").length);
+        }
+
+        File json = File.createTempFile("stats", ".json");
+        json.deleteOnExit();
+        stats.writeReport(json.getPath());
+        boolean found = false;
+        for (String line : Files.readAllLines(json.toPath())) {
+            if (line.contains("discardedPerSecond")) {
+                assertTrue(line, line.matches("  \"discardedPerSecond\": [0-9]+\\.[0-9]{3},"));
+                found = true;
+            }
+        }
+        assertTrue(found);
+    }
+}
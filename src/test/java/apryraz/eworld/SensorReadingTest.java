@@ -0,0 +1,77 @@
+package apryraz.eworld;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.*;
+
+/**
+ * Class for testing the SensorReading type
+ **/
+public class SensorReadingTest {
+
+    /**
+     * Outputs with a character that is not a sensor, or with a sensor that
+     * appears twice, are rejected
+     **/
+    @Test
+    public void parseRejectsMalformedOutputTest () {
+        for (String output : new String[] {"11", "121", "233", "0", "4", "1a", " 1"}) {
+            try {
+                SensorReading.parse(output);
+                fail("Malformed sensors output accepted: \"" + output + "\"");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        assertTrue(SensorReading.parse("31") == SensorReading.parse("13"));
+        assertTrue(SensorReading.parse("") == SensorReading.NONE);
+    }
+
+    /**
+     * The positions given by a reading are new lists every time, so changing
+     * them doesn't change the shared readings nor the scopes of the sensors
+     **/
+    @Test
+    public void positionsAreCopiesTest () {
+        Position center = new Position(5, 5);
+        ArrayList<Position> forbidden = SensorReading.NONE.getForbiddenPositions(center);
+        forbidden.get(0).x = 100;
+        forbidden.clear();
+        assertEquals(9, SensorReading.NONE.getForbiddenPositions(center).size());
+        for (Position pos : SensorReading.NONE.getForbiddenPositions(center)) {
+            assertTrue(Math.abs(pos.x - 5) <= 1 && Math.abs(pos.y - 5) <= 1);
+        }
+
+        ArrayList<Position> scope = SensorReading.getScope(3, center);
+        scope.get(0).y = 100;
+        assertEquals(center, SensorReading.getScope(3, center).get(0));
+        assertEquals(4, SensorReading.getScope(1, center).size());
+        assertEquals(4, SensorReading.getScope(2, center).size());
+    }
+
+    /**
+     * The offsets read one by one give the same positions as the lists
+     **/
+    @Test
+    public void offsetsMatchPositionsTest () {
+        Position center = new Position(5, 5);
+        for (int sensor = 1; sensor <= SensorReading.NUM_SENSORS; sensor++) {
+            ArrayList<Position> scope = SensorReading.getScope(sensor, center);
+            assertEquals(scope.size(), SensorReading.scopeSize(sensor));
+            for (int k = 0; k < scope.size(); k++) {
+                assertEquals(scope.get(k), new Position(5 + SensorReading.scopeDx(sensor, k), 5 + SensorReading.scopeDy(sensor, k)));
+            }
+        }
+        for (int mask = 0; mask < 8; mask++) {
+            SensorReading reading = SensorReading.of(mask);
+            ArrayList<Position> forbidden = reading.getForbiddenPositions(center);
+            assertEquals(forbidden.size(), reading.forbiddenCount());
+            for (int k = 0; k < forbidden.size(); k++) {
+                assertEquals(forbidden.get(k), new Position(5 + reading.forbiddenDx(k), 5 + reading.forbiddenDy(k)));
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package apryraz.eworld;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.sat4j.specs.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.*;
+
+/**
+ * Class for testing the tiles of the TiledEnvelopeFinder agent and the
+ * checks that span several tiles
+ **/
+public class TiledEnvelopeFinderTest {
+
+    /**
+     * A tile only discards a position once, treats the positions outside the
+     * world as discarded, and hands out copies of its knowledge
+     **/
+    @Test
+    public void tileKnowledgeTest () {
+        // Tile of dimension 4 at the corner of a 6x6 world: only 2x2 positions inside
+        EnvelopeWorldTile tile = new EnvelopeWorldTile(4, 4, 4, 6, null);
+        assertEquals("?", tile.get(new Position(5, 6)));
+        assertEquals("X", tile.get(new Position(7, 5)));
+        assertTrue(tile.addNoEnvelope(new Position(5, 6)));
+        assertFalse(tile.addNoEnvelope(new Position(5, 6)));
+        assertEquals("X", tile.get(new Position(5, 6)));
+
+        BitSet known = tile.getKnownPositions();
+        assertEquals(1, known.cardinality());
+        known.set(0);
+        assertEquals("?", tile.get(new Position(5, 5)));
+
+        // Loaded again after being evicted
+        EnvelopeWorldTile reloaded = new EnvelopeWorldTile(4, 4, 4, 6, tile.getKnownPositions());
+        assertEquals("X", reloaded.get(new Position(5, 6)));
+        assertEquals("?", reloaded.get(new Position(5, 5)));
+    }
+
+    /**
+     * Environment that gives a fixed sequence of answers
+     *
+     * @param wDim dimension of the world
+     * @param answers components of the answers, in order
+     * @return the environment
+     **/
+    EnvelopeWorldEnv scriptedEnvironment (int wDim, String[][] answers) {
+        return new EnvelopeWorldEnv(wDim) {
+            int next = 0;
+
+            @Override
+            public AMessage acceptMessage(AMessage msg) {
+                String[] ans = answers[next++];
+                return new AMessage(ans[0], ans[1], ans[2], "");
+            }
+        };
+    }
+
+    /**
+     * A reading where a sensor detects an envelope only in positions already
+     * discarded, some of them in tiles other than the one of the agent, is a
+     * contradiction
+     **/
+    @Test
+    public void detectionAcrossTilesTest () {
+        // Tiles of dimension 2, only one loaded: the scope of sensor 2 at (2,2)
+        // is (1,1), (3,1), (1,3) and (3,3), in four different tiles
+        TiledEnvelopeFinder tAgent = new TiledEnvelopeFinder(4, 2, 1);
+        tAgent.setEnvironment(scriptedEnvironment(4, new String[][] {
+                {"movedto", "3", "2"}, {"", "3", "2"}, {"movedto", "2", "2"}, {"2", "2", "2"} }));
+        tAgent.listOfSteps = new ArrayList<>(Arrays.asList(new Position(3, 2), new Position(2, 2)));
+        tAgent.numMovements = 2;
+        try {
+            tAgent.runNextStep();
+            // (3,1) and (3,3) are discarded, (1,1) and (1,3) still possible
+            tAgent.runNextStep();
+            assertEquals("X", tAgent.getCellState(new Position(3, 3)));
+            assertEquals("?", tAgent.getCellState(new Position(1, 3)));
+        } catch (ContradictionException ex) {
+            fail("Consistent readings rejected: " + ex.getMessage());
+        }
+
+        // Now (1,1) and (1,3) are discarded before
+        TiledEnvelopeFinder inconsistent = new TiledEnvelopeFinder(4, 2, 1);
+        inconsistent.setEnvironment(scriptedEnvironment(4, new String[][] {
+                {"movedto", "1", "2"}, {"", "1", "2"}, {"movedto", "3", "2"}, {"", "3", "2"},
+                {"movedto", "2", "2"}, {"2", "2", "2"} }));
+        inconsistent.listOfSteps = new ArrayList<>(Arrays.asList(new Position(1, 2), new Position(3, 2), new Position(2, 2)));
+        inconsistent.numMovements = 3;
+        try {
+            inconsistent.runNextStep();
+            inconsistent.runNextStep();
+            inconsistent.runNextStep();
+            fail("Sensor 2 detects an envelope with all its scope discarded");
+        } catch (ContradictionException ex) {
+            assertTrue(ex.getMessage().startsWith("Sensor 2"));
+        }
+    }
+}
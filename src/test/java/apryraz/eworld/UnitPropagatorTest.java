@@ -0,0 +1,109 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+
+import org.sat4j.core.VecInt;
+import org.sat4j.specs.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.*;
+
+/**
+ * Class for testing the unit propagation tier of the EnvelopeFinder agent
+ **/
+public class UnitPropagatorTest extends EnvelopeFinderTestBase {
+
+    /**
+     * A clause with all its literals but one false makes the last one true,
+     * and the new literal goes on propagating through the watched clauses
+     **/
+    @Test
+    public void propagationChainTest () {
+        UnitPropagator propagator = new UnitPropagator(3);
+        propagator.addClause(new VecInt(new int[] { 1, 2, 3 }));
+        propagator.addClause(new VecInt(new int[] { -1 }));
+        assertFalse(propagator.isFalse(2));
+        assertFalse(propagator.isFalse(-2));
+        propagator.addClause(new VecInt(new int[] { -3 }));
+        assertTrue(propagator.isFalse(-2));
+        assertTrue(propagator.isFalse(1));
+
+        // 4 -> 5 -> 6, with variables beyond the initial number
+        propagator.addClause(new VecInt(new int[] { -4, 5 }));
+        propagator.addClause(new VecInt(new int[] { -5, 6 }));
+        assertFalse(propagator.isFalse(-6));
+        propagator.addClause(new VecInt(new int[] { 4 }));
+        assertTrue(propagator.isFalse(-5));
+        assertTrue(propagator.isFalse(-6));
+        assertFalse(propagator.isFalse(7));
+    }
+
+    /**
+     * Literals that are only consequences by case analysis are not derived:
+     * they are left to the solver
+     **/
+    @Test
+    public void onlyDerivedLiteralsTest () {
+        UnitPropagator propagator = new UnitPropagator(2);
+        propagator.addClause(new VecInt(new int[] { 1, 2 }));
+        propagator.addClause(new VecInt(new int[] { 1, -2 }));
+        assertFalse(propagator.isFalse(-1));
+    }
+
+    /**
+     * Once the clauses are contradictory nothing is reported as false, so
+     * the agent asks the solver about every position
+     **/
+    @Test
+    public void conflictTest () {
+        UnitPropagator propagator = new UnitPropagator(2);
+        propagator.addClause(new VecInt(new int[] { -1 }));
+        assertTrue(propagator.isFalse(1));
+        propagator.addClause(new VecInt(new int[] { 1, 2 }));
+        propagator.addClause(new VecInt(new int[] { -2 }));
+        assertFalse(propagator.isFalse(1));
+        assertFalse(propagator.isFalse(2));
+    }
+
+    /**
+     * On test4, with every encoding and without witness models, every position
+     * not yet discarded costs one SAT call unless it is discarded by
+     * propagation; the first reading is discarded by propagation alone; and
+     * all the conclusions come from one of the two tiers
+     **/
+    @Test
+    public void propagationSkipsSatCallsTest () throws IOException, ContradictionException, TimeoutException {
+        for (GammaEncoding encoding : GammaEncoding.values()) {
+            EnvelopeFinder eAgent = newAgent(encoding);
+            eAgent.setMaxWitnessModels(0);
+            EnvelopeWorldEnv env = eAgent.EnvAgent;
+
+            for (int i = 0; i < 12; i++) {
+                Position next = eAgent.listOfSteps.get(i);
+                boolean newEvidence = !eAgent.sensorEvidence.containsKey(next);
+                int known = eAgent.previousConsequences.size();
+                long satCalls = eAgent.numSatCalls;
+                eAgent.runNextStep();
+                if (!newEvidence) {
+                    continue;
+                }
+                assertEquals(49 - known - eAgent.lastPropagationConclusions, eAgent.numSatCalls - satCalls);
+                assertEquals(eAgent.lastConclusions.size(),
+                        eAgent.lastPropagationConclusions + eAgent.lastSatConclusions);
+                if (i == 0) {
+                    int forbidden = 0;
+                    for (Position pos : env.getSensorReading(next).getForbiddenPositions(next)) {
+                        if (eAgent.withinLimits(pos)) {
+                            forbidden++;
+                        }
+                    }
+                    assertEquals(forbidden, eAgent.lastPropagationConclusions);
+                    assertEquals(0, eAgent.lastSatConclusions);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+
+import org.sat4j.specs.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.*;
+
+/**
+ * Class for testing the what-if queries of the EnvelopeFinder agent
+ **/
+public class WhatIfTest extends EnvelopeFinderTestBase {
+
+    /**
+     * The SAT calls of the what-if queries are counted with the rest, and
+     * reported apart by the statistics of the run
+     **/
+    @Test
+    public void whatIfSatCallsTest () throws IOException, ContradictionException, TimeoutException {
+        EnvelopeFinder eAgent = newAgent();
+        EnvelopeWorldEnv env = eAgent.EnvAgent;
+        RunStatistics stats = new RunStatistics(eAgent);
+
+        long whatIfCalls = 0;
+        for (int step = 0; step < 12; step++) {
+            Position next = eAgent.listOfSteps.get(step);
+            long satCalls = eAgent.numSatCalls;
+            long hypotheticalSatCalls = eAgent.numHypotheticalSatCalls;
+            EFState predicted = eAgent.whatIf(next.x, next.y, env.getSensorReading(next));
+
+            // One call for the consistency of the reading, and one per position
+            // not discarded by the current knowledge nor by the reading itself
+            long calls = eAgent.numSatCalls - satCalls;
+            assertEquals(calls, eAgent.numHypotheticalSatCalls - hypotheticalSatCalls);
+            assertTrue(calls >= 1 + countUnknown(predicted));
+            whatIfCalls += calls;
+
+            eAgent.runNextStep();
+            stats.recordStep(eAgent);
+        }
+        assertEquals(whatIfCalls, stats.hypotheticalSatCalls);
+        assertTrue(stats.satCalls > stats.hypotheticalSatCalls);
+    }
+
+    /**
+     * Get the number of positions of a state not discarded
+     **/
+    int countUnknown(EFState state) {
+        int unknown = 0;
+        for (int i = 0; i < 7; i++) {
+            for (int j = 0; j < 7; j++) {
+                if (!state.matrix[i][j].equals("X")) {
+                    unknown++;
+                }
+            }
+        }
+        return unknown;
+    }
+}
@@ -0,0 +1,145 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.sat4j.specs.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.*;
+
+/**
+ * Class for testing the witness models kept by the EnvelopeFinder agent
+ **/
+public class WitnessCacheTest extends EnvelopeFinderTestBase {
+
+    /**
+     * Get a set of lineal indexes
+     **/
+    static BitSet positions(int... lineals) {
+        BitSet set = new BitSet();
+        for (int lineal : lineals) {
+            set.set(lineal);
+        }
+        return set;
+    }
+
+    /**
+     * When the cache is full, a new model drops the least recently used one,
+     * and being a witness counts as a use
+     **/
+    @Test
+    public void leastRecentlyUsedTest () {
+        WitnessCache cache = new WitnessCache(2);
+        cache.addModel(positions(1));
+        cache.addModel(positions(2));
+        assertTrue(cache.hasWitness(1));
+        cache.addModel(positions(3));
+        assertEquals(2, cache.size());
+        assertFalse(cache.hasWitness(2));
+        assertTrue(cache.hasWitness(1));
+        assertTrue(cache.hasWitness(3));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertFalse(cache.hasWitness(1));
+    }
+
+    /**
+     * A reading drops the models with an envelope where it forbids one, and
+     * the models with no envelope in a scope where it requires one
+     **/
+    @Test
+    public void retainConsistentTest () {
+        WitnessCache cache = new WitnessCache(8);
+        cache.addModel(positions(3, 5));
+        cache.addModel(positions(4));
+        cache.addModel(positions(6));
+        cache.retainConsistent(positions(4), Arrays.asList(positions(5, 6)));
+        assertEquals(2, cache.size());
+        assertTrue(cache.hasWitness(3));
+        assertTrue(cache.hasWitness(6));
+        assertFalse(cache.hasWitness(4));
+
+        cache.retainConsistent(positions(5), Arrays.asList());
+        assertEquals(1, cache.size());
+        assertFalse(cache.hasWitness(3));
+    }
+
+    /**
+     * On test4, with every encoding, every position not yet discarded costs a
+     * SAT call unless propagation discards it or a model is a witness for it;
+     * the witnesses save SAT calls without changing the states, and the models
+     * kept never have an envelope at a discarded position
+     **/
+    @Test
+    public void witnessesSkipSatCallsTest () throws IOException, ContradictionException, TimeoutException {
+        for (GammaEncoding encoding : GammaEncoding.values()) {
+            EnvelopeFinder withWitnesses = newAgent(encoding);
+            EnvelopeFinder without = newAgent(encoding);
+            without.setMaxWitnessModels(0);
+
+            int witnessHits = 0;
+            for (int i = 0; i < 12; i++) {
+                boolean newEvidence = !withWitnesses.sensorEvidence.containsKey(withWitnesses.listOfSteps.get(i));
+                int known = withWitnesses.previousConsequences.size();
+                long satCalls = withWitnesses.numSatCalls;
+                withWitnesses.runNextStep();
+                without.runNextStep();
+                assertEquals(without.getState(), withWitnesses.getState());
+                if (newEvidence) {
+                    assertEquals(49 - known - withWitnesses.lastPropagationConclusions - withWitnesses.lastWitnessHits,
+                            withWitnesses.numSatCalls - satCalls);
+                    witnessHits += withWitnesses.lastWitnessHits;
+                }
+                for (BitSet model : withWitnesses.witnesses.models) {
+                    for (int lineal = model.nextSetBit(0); lineal >= 0; lineal = model.nextSetBit(lineal + 1)) {
+                        assertEquals("?", withWitnesses.getState().matrix[lineal / 7][lineal % 7]);
+                    }
+                }
+            }
+            assertTrue(witnessHits > 0);
+            assertEquals(without.numSatCalls - witnessHits, withWitnesses.numSatCalls);
+        }
+    }
+
+    /**
+     * With a known number of envelopes the readings also require envelopes,
+     * and the witnesses still save SAT calls without changing the states
+     **/
+    @Test
+    public void witnessesWithEnvelopeCountTest () throws IOException, ContradictionException, TimeoutException {
+        for (GammaEncoding encoding : GammaEncoding.values()) {
+            EnvelopeFinder withWitnesses = newAgent(encoding);
+            EnvelopeFinder without = newAgent(encoding);
+            without.setMaxWitnessModels(0);
+            for (EnvelopeFinder eAgent : Arrays.asList(withWitnesses, without)) {
+                eAgent.setEnvelopeCount(3, true);
+            }
+            for (int i = 0; i < 12; i++) {
+                withWitnesses.runNextStep();
+                without.runNextStep();
+                assertEquals(without.getState(), withWitnesses.getState());
+            }
+            assertTrue(withWitnesses.numSatCalls < without.numSatCalls);
+        }
+    }
+
+    /**
+     * A new envelope count drops all the models, as they were only checked
+     * against the readings
+     **/
+    @Test
+    public void envelopeCountClearsModelsTest () throws IOException, ContradictionException, TimeoutException {
+        EnvelopeFinder eAgent = newAgent();
+        eAgent.runNextStep();
+        eAgent.runNextStep();
+        assertTrue(eAgent.witnesses.size() > 0);
+        eAgent.setEnvelopeCount(3, true);
+        assertEquals(0, eAgent.witnesses.size());
+    }
+}